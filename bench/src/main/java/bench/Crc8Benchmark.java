@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// CRC8 одного пакета: прежний побитовый расчет по копии payload (Legacy) против табличного расчета на месте.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Crc8Benchmark {
+    @Param({"5", "64", "255"})
+    int payloadLength;
+
+    byte[] frame;
+
+    @Setup
+    public void setup() {
+        frame = new byte[payloadLength + 2];
+        new Random(42).nextBytes(frame);
+        frame[0] = (byte) payloadLength;
+    }
+
+    @Benchmark
+    public int computeCrc8Simple() {
+        return Legacy.computeCrc8Simple(Arrays.copyOfRange(frame, 1, 1 + payloadLength));
+    }
+
+    @Benchmark
+    public int tableInPlace() throws Throwable {
+        return (int) Hub.CRC8.invokeExact(frame, 1, payloadLength);
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Декодирование ответа сервера из нескольких пакетов: decodePackage(String) против потокового FrameDecoder,
+// которому тело ответа приходит порциями по размеру TCP сегмента.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    static final int CHUNK = 1460;
+
+    @Param({"1", "100", "500"})
+    int frames;
+
+    @Param({"discovery", "status"})
+    String burst;
+
+    String response;
+    byte[] responseBytes;
+    Object decoder;
+    Consumer<Object> sink;
+    Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole bh) throws Throwable {
+        byte[] raw = burst.equals("discovery") ? Frames.discoveryBurst(frames) : Frames.statusBurst(frames);
+        response = Frames.toBase64(raw);
+        responseBytes = response.getBytes(StandardCharsets.US_ASCII);
+        decoder = (Object) Hub.NEW_FRAME_DECODER.invokeExact();
+        blackhole = bh;
+        sink = blackhole::consume;
+    }
+
+    @Benchmark
+    public ArrayList<?> decodePackage() throws Throwable {
+        return (ArrayList<?>) Hub.DECODE_PACKAGE.invokeExact(response);
+    }
+
+    @Benchmark
+    public void frameDecoder() throws Throwable {
+        for (int offset = 0; offset < responseBytes.length; offset += CHUNK) {
+            int length = Math.min(CHUNK, responseBytes.length - offset);
+            Hub.FRAME_DECODER_FEED.invokeExact(decoder, responseBytes, offset, length, (Consumer) sink);
+        }
+        Hub.FRAME_DECODER_FINISH.invokeExact(decoder);
+    }
+}
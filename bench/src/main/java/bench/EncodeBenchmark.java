@@ -0,0 +1,92 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+// Кодирование исходящих пакетов: прежнее семейство encodePayload* (Legacy, списки Byte) против FrameEncoder,
+// и рассылка SETSTATUS на несколько ламп по одному событию переключателя.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+    static final int HUB = 0x0ef0;
+
+    @Param({"1", "32"})
+    int lamps;
+
+    OutputStream out;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                bh.consume(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bh.consume(b);
+                bh.consume(len);
+            }
+        };
+    }
+
+    @Benchmark
+    public String whoIsHereLegacy() {
+        return Legacy.encodePayloadWhoIsHere(HUB, Hub.BROADCAST_ADDRESS, 1);
+    }
+
+    @Benchmark
+    public String whoIsHere() throws Throwable {
+        return (String) Hub.ENCODE_WHO_IS_HERE.invokeExact(HUB, Hub.BROADCAST_ADDRESS, 1);
+    }
+
+    @Benchmark
+    public String iAmHereLegacy() {
+        return Legacy.encodePayloadIAmHere(HUB);
+    }
+
+    @Benchmark
+    public String iAmHere() throws Throwable {
+        return (String) Hub.ENCODE_I_AM_HERE.invokeExact(HUB);
+    }
+
+    @Benchmark
+    public String getStatusLegacy() {
+        return Legacy.encodePayloadGetStatus(HUB, 4, 4);
+    }
+
+    @Benchmark
+    public String getStatus() throws Throwable {
+        return (String) Hub.ENCODE_GET_STATUS.invokeExact(HUB, 4, 4);
+    }
+
+    // Прежний способ: каждый пакет собирается в списке Byte, пакеты склеиваются и кодируются в Base64 одной строкой
+    @Benchmark
+    public void setStatusLegacy() throws Throwable {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < lamps; i++)
+            body.writeBytes(Legacy.createSetStatus(HUB, 100 + i, 4, (byte) 1));
+        String request = Base64.getUrlEncoder().withoutPadding().encodeToString(body.toByteArray());
+        for (int i = 0; i < request.length(); i++)
+            out.write(request.charAt(i));
+    }
+
+    // Все пакеты в один FrameEncoder и сразу в поток запроса
+    @Benchmark
+    public void setStatusFrames() throws Throwable {
+        Object frames = (Object) Hub.FRAME_ENCODER_GET.invokeExact();
+        for (int i = 0; i < lamps; i++)
+            frames = (Object) Hub.ENCODE_SET_STATUS_FRAME.invokeExact(frames, HUB, 100 + i, 4, (byte) 1);
+        Hub.FRAME_ENCODER_WRITE_TO.invokeExact(frames, out);
+    }
+}
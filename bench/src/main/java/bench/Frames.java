@@ -0,0 +1,44 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+
+// Примеры пакетов из src/comands и сборка из них реалистичных ответов сервера.
+final class Frames {
+    static final String CLOCK = "Dgb_fxUGAgdDTE9DSzAxsw";
+    static final String SOCKET = "DwX_fxEFAghTT0NLRVQwMc0";
+    static final String LAMP = "DQT_fwwEAgZMQU1QMDGU";
+    static final String SENSOR = "OAL_fwQCAghTRU5TT1IwMQ8EDGQGT1RIRVIxD7AJBk9USEVSMgCsjQYGT1RIRVIzCAAGT1RIRVI09w";
+    static final String LAMP_OFF = "BgQBDgQEALE";
+    static final String LAMP_ON = "BgQBDgQEAaw";
+    static final String SOCKET_OFF = "BgUBEwUEABI";
+    static final String SOCKET_ON = "BgUBEwUEAQ8";
+
+    private static final String[] DISCOVERY = {CLOCK, SOCKET, LAMP, SENSOR};
+    private static final String[] STATUS = {LAMP_OFF, LAMP_ON, SOCKET_OFF, SOCKET_ON};
+
+    private Frames() {
+    }
+
+    // Ответ на WHOISHERE: count пакетов IAMHERE подряд
+    static byte[] discoveryBurst(int count) {
+        return burst(DISCOVERY, count);
+    }
+
+    // Ответ с пакетами STATUS от ламп и розеток
+    static byte[] statusBurst(int count) {
+        return burst(STATUS, count);
+    }
+
+    static String toBase64(byte[] frames) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(frames);
+    }
+
+    private static byte[] burst(String[] samples, int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Base64.Decoder decoder = Base64.getUrlDecoder();
+        for (int i = 0; i < count; i++)
+            out.writeBytes(decoder.decode(samples[i % samples.length]));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,110 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+
+// Классы хаба лежат в пакете по умолчанию, а JMH не поддерживает бенчмарки без пакета,
+// поэтому бенчмарки вызывают код хаба через MethodHandle. Ссылки хранятся в static final полях,
+// JIT встраивает их так же, как прямой вызов. Типы хаба в сигнатурах заменены на Object.
+final class Hub {
+    static final MethodHandle CRC8 = method("Crc8", "compute", byte[].class, int.class, int.class);
+
+    static final MethodHandle DECODE_ULEB128 = method("Main", "decodeULEB128", int.class, byte[].class);
+    static final MethodHandle ENCODE_ULEB128 = method("Main", "encodeULEB128", int.class);
+    static final MethodHandle ULEB128_READ_INT = method("Uleb128", "readInt", java.nio.ByteBuffer.class);
+    static final MethodHandle ULEB128_WRITE = method("Uleb128", "write", byte[].class, int.class, long.class);
+
+    static final MethodHandle DECODE_PACKAGE = method("Main", "decodePackage", String.class);
+    static final MethodHandle NEW_FRAME_DECODER = constructor("FrameDecoder");
+    static final MethodHandle FRAME_DECODER_FEED = method("FrameDecoder", "feed",
+            byte[].class, int.class, int.class, java.util.function.Consumer.class);
+    static final MethodHandle FRAME_DECODER_FINISH = method("FrameDecoder", "finish");
+
+    static final MethodHandle ENCODE_WHO_IS_HERE = method("Main", "encodePayloadWhoIsHere", int.class, int.class, int.class);
+    static final MethodHandle ENCODE_I_AM_HERE = method("Main", "encodePayloadIAmHere", int.class);
+    static final MethodHandle ENCODE_GET_STATUS = method("Main", "encodePayloadGetStatus", int.class, int.class, int.class);
+    static final MethodHandle ENCODE_SET_STATUS = method("Main", "encodePayloadSetStatus", int.class, int.class, int.class, byte.class);
+    static final MethodHandle FRAME_ENCODER_GET = method("FrameEncoder", "get");
+    static final MethodHandle ENCODE_SET_STATUS_FRAME = method("Main", "encodePayloadSetStatus",
+            type("FrameEncoder"), int.class, int.class, int.class, byte.class);
+    static final MethodHandle FRAME_ENCODER_WRITE_TO = method("FrameEncoder", "writeTo", java.io.OutputStream.class);
+
+    static final MethodHandle NEW_TRIGGER = constructor("Main$EnvSensorProps$Trigger",
+            byte.class, boolean.class, int.class, int.class, String.class);
+    static final MethodHandle NEW_ENV_SENSOR_PROPS = constructor("Main$EnvSensorProps",
+            boolean[].class, arrayType("Main$EnvSensorProps$Trigger"));
+    static final MethodHandle NEW_DEVICE = constructor("Main$Device", String.class, int.class, int.class, type("Main$DevProps"));
+    static final MethodHandle NEW_REGISTRY = constructor("DeviceRegistry", int.class);
+    static final MethodHandle REGISTRY_PUT = method("DeviceRegistry", "put", type("Main$Device"));
+    static final MethodHandle NEW_DEVICE_STATES = constructor("DeviceStates", int.class);
+    static final MethodHandle COMPILE_TRIGGERS = method("TriggerIndex", "compile", type("Main$EnvSensorProps"), type("DeviceRegistry"));
+    static final MethodHandle EVALUATE_TRIGGERS = method("TriggerIndex", "evaluate", double[].class, type("DeviceStates"));
+
+    static final int BROADCAST_ADDRESS = 16383;
+
+    private Hub() {
+    }
+
+    // Массив триггеров нужного типа для конструктора EnvSensorProps
+    static Object[] newTriggerArray(int length) {
+        return (Object[]) java.lang.reflect.Array.newInstance(type("Main$EnvSensorProps$Trigger"), length);
+    }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Class<?> arrayType(String name) {
+        return type(name).arrayType();
+    }
+
+    private static MethodHandle method(String owner, String name, Class<?>... parameters) {
+        try {
+            Method method = type(owner).getDeclaredMethod(name, parameters);
+            return erase(MethodHandles.lookup().unreflect(accessible(method)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle constructor(String owner, Class<?>... parameters) {
+        try {
+            Constructor<?> constructor = type(owner).getDeclaredConstructor(parameters);
+            return erase(MethodHandles.lookup().unreflectConstructor(accessible(constructor)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T extends Executable> T accessible(T executable) {
+        executable.setAccessible(true);
+        return executable;
+    }
+
+    // Заменяет в сигнатуре классы хаба на Object, примитивы и классы JDK остаются как есть
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++)
+            type = type.changeParameterType(i, erase(type.parameterType(i)));
+        return handle.asType(type.changeReturnType(erase(type.returnType())));
+    }
+
+    private static Class<?> erase(Class<?> type) {
+        if (type.isPrimitive())
+            return type;
+        Class<?> component = type;
+        while (component.isArray())
+            component = component.getComponentType();
+        if (component.isPrimitive() || component.getPackageName().startsWith("java."))
+            return type;
+        return type.isArray() ? Object[].class : Object.class;
+    }
+}
@@ -0,0 +1,104 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+
+// Прежний код кодирования пакетов и CRC8 из Main, до FrameEncoder и табличного Crc8.
+// Хранится здесь копией, чтобы пары бенчмарков "до/после" сравнивали действительно разный код.
+final class Legacy {
+    private static final String HUB_NAME = "HUB";
+    private static final int WHOISHERE = 1;
+    private static final int IAMHERE = 2;
+    private static final int GETSTATUS = 3;
+    private static final int SETSTATUS = 5;
+
+    private static int serial = 1;
+
+    private Legacy() {
+    }
+
+    static int computeCrc8Simple(byte[] bytes) {
+        final int generator = 0x1D;
+        int crc = 0;
+        for (byte b : bytes) {
+            int currByte = b & 0xff;
+            crc ^= currByte;
+            for (int i = 0; i < 8; i++) {
+                if ((crc & 0x80) != 0) {
+                    crc = ((crc << 1) ^ generator) & 0xff;
+                } else {
+                    crc <<= 1;
+                }
+            }
+        }
+        return crc;
+    }
+
+    static ArrayList<Byte> encodeULEB128(int value) {
+        ArrayList<Byte> list = new ArrayList<>();
+        do {
+            byte b = (byte) (value & 0x7f);
+            value >>= 7;
+            if (value != 0) {
+                b |= 0x80;
+            }
+            list.add(b);
+        } while (value != 0);
+        return list;
+    }
+
+    // Возвращает последовательность байт, которыми кодируется Payload (за исключением cmdBody).
+    static ArrayList<Byte> createPayloadHeader(int address, int dstAddress, int devType, int command) {
+        ArrayList<Byte> byteList = new ArrayList<>();
+        byteList.addAll(encodeULEB128(address));
+        byteList.addAll(encodeULEB128(dstAddress));
+        byteList.addAll(encodeULEB128(serial++));
+        byteList.add((byte) devType);
+        byteList.add((byte) command);
+        return byteList;
+    }
+
+    // Вычисляет размер Payload в байтах и записывает в позиции 0. Вычисляет crc8 и записывает в последний байт.
+    static byte[] createPayload(ArrayList<Byte> byteList) {
+        byte[] byteArray = new byte[byteList.size() + 2];
+        byteArray[0] = (byte) (byteList.size() & 0xff);
+        for (int i = 1; i < byteArray.length - 1; i++)
+            byteArray[i] = byteList.get(i - 1);
+        byteArray[byteArray.length - 1] = (byte) (computeCrc8Simple(Arrays.copyOfRange(byteArray, 1, byteArray.length - 1)));
+        return byteArray;
+    }
+
+    static String encodePayloadWhoIsHere(int address, int dstAddress, int devType) {
+        ArrayList<Byte> byteList = createPayloadHeader(address, dstAddress, devType, WHOISHERE);
+        byteList.add((byte) HUB_NAME.length());
+        for (int i = 0; i < HUB_NAME.length(); i++)
+            byteList.add((byte) HUB_NAME.charAt(i));
+
+        byte[] byteArray = createPayload(byteList);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(byteArray);
+    }
+
+    static String encodePayloadIAmHere(int address) {
+        ArrayList<Byte> byteList = createPayloadHeader(address, Hub.BROADCAST_ADDRESS, 1, IAMHERE);
+        byteList.add((byte) HUB_NAME.length());
+        for (int i = 0; i < HUB_NAME.length(); i++)
+            byteList.add((byte) HUB_NAME.charAt(i));
+
+        byte[] byteArray = createPayload(byteList);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(byteArray);
+    }
+
+    static String encodePayloadGetStatus(int address, int dstAddress, int devType) {
+        ArrayList<Byte> byteList = createPayloadHeader(address, dstAddress, devType, GETSTATUS);
+        byte[] byteArray = createPayload(byteList);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(byteArray);
+    }
+
+    // Пакет SETSTATUS без Base64: пакеты одного запроса кодируются в Base64 одним потоком байт
+    static byte[] createSetStatus(int address, int dstAddress, int devType, byte value) {
+        ArrayList<Byte> byteList = createPayloadHeader(address, dstAddress, devType, SETSTATUS);
+        byteList.add(value);
+        return createPayload(byteList);
+    }
+}
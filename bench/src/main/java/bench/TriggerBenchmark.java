@@ -0,0 +1,103 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Обработка STATUS от EnvSensor с большим числом триггеров: прежний вложенный цикл с поиском устройств
+// по имени и адресу против скомпилированного TriggerIndex.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TriggerBenchmark {
+    @Param({"16", "255"})
+    int triggers;
+
+    // Датчики: температура, влажность, освещенность, загрязнение
+    boolean[] sensors = {true, true, false, true};
+    double[] values;
+
+    // Прежнее представление: триггеры с именами и две HashMap
+    LegacyTrigger[] legacyTriggers;
+    Map<String, Integer> addresses = new HashMap<>();
+    Map<Integer, int[]> devices = new HashMap<>();
+
+    Object index;
+    Object states;
+
+    @Setup
+    public void setup() throws Throwable {
+        Random random = new Random(42);
+        Object registry = (Object) Hub.NEW_REGISTRY.invokeExact(Hub.BROADCAST_ADDRESS);
+        states = (Object) Hub.NEW_DEVICE_STATES.invokeExact(Hub.BROADCAST_ADDRESS);
+
+        legacyTriggers = new LegacyTrigger[triggers];
+        Object[] hubTriggers = Hub.newTriggerArray(triggers);
+        for (int i = 0; i < triggers; i++) {
+            String name = "LAMP" + i;
+            int address = 100 + i;
+            addresses.put(name, address);
+            devices.put(address, new int[]{address, 4});
+            Object device = (Object) Hub.NEW_DEVICE.invokeExact(name, address, 4, (Object) null);
+            Hub.REGISTRY_PUT.invokeExact(registry, device);
+
+            byte onOff = (byte) (i & 1);
+            boolean moreOrLess = random.nextBoolean();
+            int sensor = random.nextInt(4);
+            int value = random.nextInt(100);
+            legacyTriggers[i] = new LegacyTrigger(onOff, moreOrLess, sensor, value, name);
+            hubTriggers[i] = (Object) Hub.NEW_TRIGGER.invokeExact(onOff, moreOrLess, sensor, value, name);
+        }
+        Object props = (Object) Hub.NEW_ENV_SENSOR_PROPS.invokeExact(sensors, hubTriggers);
+        index = (Object) Hub.COMPILE_TRIGGERS.invokeExact(props, registry);
+        values = new double[]{50, 50, 50};
+    }
+
+    @Benchmark
+    public int nestedLoop() {
+        int fired = 0;
+        int counter = 0;
+        for (int i = 0; i < sensors.length; i++) {
+            if (!sensors[i])
+                continue;
+            for (LegacyTrigger trigger : legacyTriggers) {
+                int[] device = devices.get(addresses.get(trigger.deviceName));
+                if (device == null)
+                    continue;
+                if (trigger.sensor == i &&
+                        (!trigger.moreOrLess && values[counter] < trigger.value ||
+                                trigger.moreOrLess && values[counter] > trigger.value))
+                    fired += device[0];
+            }
+            counter++;
+        }
+        return fired;
+    }
+
+    @Benchmark
+    public int triggerIndex() throws Throwable {
+        return (int) Hub.EVALUATE_TRIGGERS.invokeExact(index, values, states);
+    }
+
+    static final class LegacyTrigger {
+        final byte onOff;
+        final boolean moreOrLess;
+        final int sensor;
+        final int value;
+        final String deviceName;
+
+        LegacyTrigger(byte onOff, boolean moreOrLess, int sensor, int value, String deviceName) {
+            this.onOff = onOff;
+            this.moreOrLess = moreOrLess;
+            this.sensor = sensor;
+            this.value = value;
+            this.deviceName = deviceName;
+        }
+    }
+}
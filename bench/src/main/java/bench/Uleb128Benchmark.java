@@ -0,0 +1,62 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Пять чисел заголовка Payload (src, dst, serial, devType, cmd): прежний API с массивами и списками против курсора.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Uleb128Benchmark {
+    static final int[] HEADER = {4097, Hub.BROADCAST_ADDRESS, 1_000_000, 4, 5};
+
+    byte[] encoded;
+    ByteBuffer buffer;
+    byte[] output = new byte[32];
+
+    @Setup
+    public void setup() throws Throwable {
+        encoded = new byte[32];
+        int position = 0;
+        for (int value : HEADER)
+            position = (int) Hub.ULEB128_WRITE.invokeExact(encoded, position, (long) value);
+        buffer = ByteBuffer.wrap(encoded);
+    }
+
+    @Benchmark
+    public void decodeULEB128(Blackhole bh) throws Throwable {
+        int index = 0;
+        for (int i = 0; i < HEADER.length; i++) {
+            int[] numberAndCountBytes = (int[]) Hub.DECODE_ULEB128.invokeExact(index, encoded);
+            bh.consume(numberAndCountBytes[0]);
+            index += numberAndCountBytes[1];
+        }
+    }
+
+    @Benchmark
+    public void readInt(Blackhole bh) throws Throwable {
+        buffer.clear();
+        for (int i = 0; i < HEADER.length; i++)
+            bh.consume((int) Hub.ULEB128_READ_INT.invokeExact(buffer));
+    }
+
+    @Benchmark
+    public void encodeULEB128(Blackhole bh) throws Throwable {
+        for (int value : HEADER)
+            bh.consume((java.util.ArrayList<?>) Hub.ENCODE_ULEB128.invokeExact(value));
+    }
+
+    @Benchmark
+    public int write() throws Throwable {
+        int position = 0;
+        for (int value : HEADER)
+            position = (int) Hub.ULEB128_WRITE.invokeExact(output, position, (long) value);
+        return position;
+    }
+}
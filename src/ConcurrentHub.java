@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Конкурентный режим работы хаба. Опрос сервера и отправка запросов работают в отдельных задачах со своими
+// соединениями, декодируют ответы по мере чтения и складывают пакеты в общую очередь без блокировок (MpscRing);
+// dispatcher обрабатывает начало ответа (триггеры, переключатели), пока его конец еще читается из сети.
+//
+//   outbound --> poller (или пустой запрос) --\
+//                                              >--> inbound --> dispatcher --> outbound
+//   outbound --> sender ----------------------/
+//
+// Сами обмены с сервером не перекрываются (exchange): сервер продвигает время на каждый запрос. Поэтому режим
+// выигрывает у HubSession только за счет обработки пакетов во время чтения ответа, а не параллельных запросов.
+// Задачи выполняются на потоках-демонах. Вся логика хаба выполняется одной задачей dispatcher, поэтому
+// HubDispatcher не нужно синхронизировать.
+// В простое poller делает паузы между пустыми опросами (PollScheduler). Долгий опрос здесь не используется:
+// удерживаемый сервером опрос задержал бы отправку пакетов sender.
+public class ConcurrentHub {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int INBOUND_CAPACITY = 1 << 14;
+
+    private final HubDispatcher dispatcher;
+
+    // Декодированные пакеты от poller и sender для dispatcher
+    private final MpscRing<PayloadView> inbound = new MpscRing<>(INBOUND_CAPACITY);
+    // Пакеты для отправки и отправленные буферы для повторного использования
+    private final BlockingQueue<FrameEncoder> outbound = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<FrameEncoder> spare = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    // Сервер продвигает время на каждый запрос, поэтому запросы poller и sender не перекрываются:
+    // иначе опрос уводит время вперед, пока ответы устройств на отправленные запросы еще в пути
+    private final Semaphore exchange = new Semaphore(1, true);
+
+    // Следующий запрос poller разрешается, когда dispatcher обработал ответ на предыдущий.
+    // Иначе при занятом dispatcher опрос уводит время сервера вперед, и сроки ответов истекают до их обработки.
+    private final Semaphore pollTurn = new Semaphore(1);
+    // Отметка конца ответа poller в очереди inbound
+    private static final PayloadView POLL_END = new PayloadView();
+    // Паузы опроса; dispatcher обновляет его до pollTurn.release, poller читает после pollTurn.acquire
+    private final PollScheduler pollScheduler = new PollScheduler();
+
+    private final List<Thread> tasks = new ArrayList<>();
+    private final HubTransport pollTransport;
+    private final HubTransport sendTransport;
+    private final HubMetrics metrics;
+    private volatile boolean running = true;
+    private volatile int responseCode = 200;
+
+    public ConcurrentHub(URL url, int hubAddress) {
+        this.dispatcher = new HubDispatcher(hubAddress);
+        this.pollTransport = new HubTransport(url);
+        this.sendTransport = new HubTransport(url);
+        this.metrics = HubMetrics.create(Integer.toHexString(hubAddress) + "@" + url);
+        dispatcher.setMetrics(metrics);
+        pollTransport.setMetrics(metrics);
+        sendTransport.setMetrics(metrics);
+        pollScheduler.setMetrics(metrics);
+    }
+
+    // Выполняет обнаружение устройств и работает до ответа сервера с кодом, отличным от 200.
+    // Возвращает последний код ответа, -1 при ошибке сети.
+    public int run() throws InterruptedException {
+        // WHOISHERE уходит первым запросом poller; исходный опрос устройств dispatcher отправит сам по окончании обнаружения
+        FrameEncoder whoIsHere = new FrameEncoder();
+        dispatcher.startDiscovery(whoIsHere, System.err::println);
+        outbound.put(whoIsHere);
+
+        // Список задач заполняется до запуска: stop из уже запущенной задачи обходит его
+        tasks.add(task("hub-poller", this::poll));
+        tasks.add(task("hub-sender", this::send));
+        tasks.add(task("hub-dispatcher", this::dispatch));
+        for (Thread task : tasks)
+            task.start();
+
+        for (Thread task : tasks)
+            task.join();
+        pollTransport.close();
+        sendTransport.close();
+        metrics.close();
+        return responseCode;
+    }
+
+    public HubTransport getPollTransport() {
+        return pollTransport;
+    }
+
+    public HubTransport getSendTransport() {
+        return sendTransport;
+    }
+
+    public PollScheduler getPollScheduler() {
+        return pollScheduler;
+    }
+
+    public MpscRing<PayloadView> getInbound() {
+        return inbound;
+    }
+
+    // Запросы к серверу за новыми пакетами. Если есть подготовленные пакеты, poller отправляет их сам, иначе пустой запрос.
+    private void poll() {
+        try {
+            while (running) {
+                int code;
+                pollTurn.acquire();
+                // в простое ждем подготовленных пакетов не дольше паузы опроса
+                long delay = pollScheduler.delayNanos();
+                FrameEncoder frames = delay > 0 ? outbound.poll(delay, TimeUnit.NANOSECONDS) : null;
+                exchange.acquire();
+                if (frames == null)
+                    frames = outbound.poll();
+                try {
+                    code = frames != null ? pollTransport.post(frames, this::publish) : pollTransport.post(" ", this::publish);
+                } finally {
+                    exchange.release();
+                }
+                inbound.put(POLL_END);
+                if (frames != null)
+                    spare.offer(frames.reset());
+                if (code != 200)
+                    stop(code);
+            }
+        } catch (IOException e) {
+            stop(-1);
+        } catch (InterruptedException e) {
+            // остановка
+        }
+    }
+
+    // Отправка пакетов, подготовленных dispatcher
+    private void send() {
+        try {
+            while (running) {
+                FrameEncoder frames = outbound.take();
+                int code;
+                exchange.acquire();
+                try {
+                    code = sendTransport.post(frames, this::publish);
+                } finally {
+                    exchange.release();
+                }
+                spare.offer(frames.reset());
+                if (code != 200)
+                    stop(code);
+            }
+        } catch (IOException e) {
+            stop(-1);
+        } catch (InterruptedException e) {
+            // остановка
+        }
+    }
+
+    // Обработка входящих пакетов. Все пакеты, накопившиеся в очереди, обрабатываются в один исходящий пакет.
+    private void dispatch() {
+        try {
+            FrameEncoder frames = frames();
+            // С прошлого конца опроса были пакеты, кроме TICK, или отправленные пакеты
+            boolean traffic = false;
+            while (running) {
+                boolean pollEnded = false;
+                PayloadView payload = inbound.take();
+                do {
+                    metrics.queueDepth.record(inbound.size());
+                    if (payload == POLL_END) {
+                        pollEnded = true;
+                    } else {
+                        traffic |= payload.getCmd() != 6;
+                        dispatcher.handle(payload, frames);
+                        payload.release();
+                    }
+                } while ((payload = inbound.poll()) != null);
+
+                if (!frames.isEmpty()) {
+                    traffic = true;
+                    outbound.put(frames);
+                    frames = frames();
+                }
+                if (pollEnded) {
+                    pollScheduler.record(traffic, false, false);
+                    traffic = false;
+                    pollTurn.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            // остановка
+        }
+    }
+
+    // Пакеты декодируются в сетевом потоке и сразу уходят в очередь dispatcher; при переполнении поток ждет.
+    // GETSTATUS и SETSTATUS других устройств в очередь не попадают.
+    private void publish(PayloadView payload) {
+        if (payload.isRequest()) {
+            payload.release();
+            return;
+        }
+        try {
+            inbound.put(payload);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private FrameEncoder frames() {
+        FrameEncoder frames = spare.poll();
+        return frames != null ? frames : new FrameEncoder();
+    }
+
+    private synchronized void stop(int code) {
+        if (!running)
+            return;
+        responseCode = code;
+        running = false;
+        for (Thread task : tasks) {
+            if (task != Thread.currentThread())
+                task.interrupt();
+        }
+    }
+
+    // Непредвиденная ошибка одной задачи (например, исключение на поврежденном пакете) останавливает хаб:
+    // иначе остальные задачи навсегда ждали бы в pollTurn, inbound или outbound
+    private Thread task(String name, Runnable task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                System.err.println(name + " failed: " + e);
+                stop(-1);
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
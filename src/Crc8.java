@@ -0,0 +1,55 @@
+import java.nio.ByteBuffer;
+
+// Табличный расчет CRC8 (полином 0x1D) без копирования данных пакета.
+public final class Crc8 {
+    private static final int GENERATOR = 0x1D;
+    private static final byte[] TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                if ((crc & 0x80) != 0) {
+                    crc = ((crc << 1) ^ GENERATOR) & 0xff;
+                } else {
+                    crc = (crc << 1) & 0xff;
+                }
+            }
+            TABLE[i] = (byte) crc;
+        }
+    }
+
+    private Crc8() {
+    }
+
+    public static int compute(byte[] bytes) {
+        return compute(bytes, 0, bytes.length);
+    }
+
+    // Считает crc8 по length байтам массива array, начиная с позиции offset.
+    public static int compute(byte[] array, int offset, int length) {
+        int crc = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            crc = TABLE[(crc ^ array[i]) & 0xff] & 0xff;
+        }
+        return crc;
+    }
+
+    // Считает crc8 по байтам между position и limit. Позиция буфера не изменяется.
+    public static int compute(ByteBuffer buffer) {
+        return compute(buffer, buffer.position(), buffer.remaining());
+    }
+
+    public static int compute(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return compute(buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        int crc = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            crc = TABLE[(crc ^ buffer.get(i)) & 0xff] & 0xff;
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+// Реестр устройств хаба. Адрес устройства ограничен 14 битами, поэтому устройства хранятся в плотном массиве
+// по адресу, а имена - в таблице имя -> адрес с открытой адресацией. Пишет в реестр один поток; таблица имен
+// меняется на месте (неизменяемые записи публикуются через AtomicReferenceArray, удаленные помечаются TOMBSTONE),
+// а новая таблица создается только при росте. Чтение (get, addressOf) идет без блокировок, упаковки и HashMap.
+public class DeviceRegistry {
+    private final AtomicReferenceArray<Main.Device> byAddress;
+    private volatile NameTable names = new NameTable(16);
+    private volatile int generation;
+    private volatile int size;
+
+    public DeviceRegistry(int maxAddress) {
+        byAddress = new AtomicReferenceArray<>(maxAddress + 1);
+    }
+
+    public Main.Device get(int address) {
+        return address >= 0 && address < byAddress.length() ? byAddress.get(address) : null;
+    }
+
+    // Адрес устройства с именем name или -1
+    public int addressOf(String name) {
+        return names.get(name);
+    }
+
+    public Main.Device get(String name) {
+        int address = addressOf(name);
+        return address < 0 ? null : byAddress.get(address);
+    }
+
+    // Добавляет или заменяет устройство. Имя прежнего устройства с тем же адресом удаляется из таблицы имен.
+    public synchronized void put(Main.Device device) {
+        Main.Device previous = byAddress.getAndSet(device.getAddress(), device);
+        NameTable table = names;
+        if (previous != null && !previous.getName().equals(device.getName()) && table.get(previous.getName()) == previous.getAddress())
+            table.remove(previous.getName());
+        if (!table.put(device.getName(), device.getAddress())) {
+            table = table.grow();
+            table.put(device.getName(), device.getAddress());
+            names = table;
+        }
+        if (previous == null)
+            size++;
+        generation++;
+    }
+
+    public synchronized Main.Device remove(int address) {
+        Main.Device previous = byAddress.getAndSet(address, null);
+        if (previous == null)
+            return null;
+        if (names.get(previous.getName()) == address)
+            names.remove(previous.getName());
+        size--;
+        generation++;
+        return previous;
+    }
+
+    public void forEach(Consumer<Main.Device> action) {
+        for (int i = 0; i < byAddress.length(); i++) {
+            Main.Device device = byAddress.get(i);
+            if (device != null)
+                action.accept(device);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Увеличивается при каждом изменении набора устройств
+    public int getGeneration() {
+        return generation;
+    }
+
+    // Таблица имя -> адрес с линейным пробированием. Записи неизменяемы, поэтому читатель видит запись целиком.
+    private static final class NameTable {
+        // Удаленная запись: поиск идет дальше, вставка может занять ячейку
+        private static final Entry TOMBSTONE = new Entry("", -1);
+
+        private final AtomicReferenceArray<Entry> slots;
+        // Живые записи и занятые ячейки (вместе с TOMBSTONE)
+        private int count;
+        private int used;
+
+        private NameTable(int capacity) {
+            slots = new AtomicReferenceArray<>(capacity);
+        }
+
+        private int get(String name) {
+            int mask = slots.length() - 1;
+            for (int i = mix(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+                Entry entry = slots.get(i);
+                if (entry == null)
+                    return -1;
+                if (entry != TOMBSTONE && (entry.name == name || entry.name.equals(name)))
+                    return entry.address;
+            }
+        }
+
+        // Добавляет или заменяет имя. Возвращает false, если таблицу нужно увеличить (grow).
+        private boolean put(String name, int address) {
+            int mask = slots.length() - 1;
+            int free = -1;
+            int i = mix(name.hashCode()) & mask;
+            for (Entry entry; (entry = slots.get(i)) != null; i = (i + 1) & mask) {
+                if (entry == TOMBSTONE) {
+                    if (free < 0)
+                        free = i;
+                } else if (entry.name.equals(name)) {
+                    slots.set(i, new Entry(name, address));
+                    return true;
+                }
+            }
+            if (free < 0) {
+                if ((used + 1) * 2 > slots.length())
+                    return false;
+                free = i;
+                used++;
+            }
+            slots.set(free, new Entry(name, address));
+            count++;
+            return true;
+        }
+
+        private void remove(String name) {
+            int mask = slots.length() - 1;
+            for (int i = mix(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+                Entry entry = slots.get(i);
+                if (entry == null)
+                    return;
+                if (entry != TOMBSTONE && entry.name.equals(name)) {
+                    slots.set(i, TOMBSTONE);
+                    count--;
+                    return;
+                }
+            }
+        }
+
+        // Новая таблица с местом для еще одного имени; удаленные записи в нее не переносятся
+        private NameTable grow() {
+            int capacity = slots.length();
+            while ((count + 1) * 4 > capacity)
+                capacity <<= 1;
+            NameTable table = new NameTable(capacity);
+            for (int i = 0; i < slots.length(); i++) {
+                Entry entry = slots.get(i);
+                if (entry != null && entry != TOMBSTONE)
+                    table.put(entry.name, entry.address);
+            }
+            return table;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    private record Entry(String name, int address) {
+    }
+}
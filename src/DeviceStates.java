@@ -0,0 +1,37 @@
+import java.util.Arrays;
+
+// Последнее известное состояние (включено/выключено) каждого устройства по его адресу.
+// Заполняется из пакетов STATUS, чтобы не отправлять SETSTATUS устройствам, которые уже в нужном состоянии.
+// Отправленный SETSTATUS сразу записывает ожидаемое состояние: повторное событие, пришедшее до ответа STATUS,
+// не порождает второй такой же SETSTATUS. Ответ STATUS (или удаление по таймауту) затем заменяет его.
+public class DeviceStates {
+    public static final byte UNKNOWN = -1;
+
+    private final byte[] states;
+
+    public DeviceStates(int maxAddress) {
+        states = new byte[maxAddress + 1];
+        Arrays.fill(states, UNKNOWN);
+    }
+
+    public byte get(int address) {
+        return states[address];
+    }
+
+    public void set(int address, boolean turnOn) {
+        states[address] = turnOn ? (byte) 1 : (byte) 0;
+    }
+
+    public void set(int address, byte value) {
+        states[address] = value;
+    }
+
+    public void clear(int address) {
+        states[address] = UNKNOWN;
+    }
+
+    // true, если устройство известно и уже находится в состоянии value
+    public boolean is(int address, byte value) {
+        return states[address] == value;
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// Потоковый декодер ответа сервера. Принимает URL-encoded Base64 порциями и отдает каждый Payload,
+// как только получен весь его пакет, не дожидаясь конца ответа.
+// Пробелы и переводы строк пропускаются, поэтому ответ не нужно предварительно чистить.
+// feedViews отдает вместо Payload переиспользуемые PayloadView из пула декодера, без создания объектов на пакет.
+public class FrameDecoder {
+    private static final int CHUNK_SIZE = 4096;
+    private static final byte[] ALPHABET = new byte[128];
+
+    static {
+        Arrays.fill(ALPHABET, (byte) -1);
+        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < chars.length(); i++)
+            ALPHABET[chars.charAt(i)] = (byte) i;
+    }
+
+    // Пакет без байта длины: payload и crc8
+    private final byte[] frame = new byte[256];
+    private final ByteBuffer frameBuffer = ByteBuffer.wrap(frame);
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private ByteBuffer channelChunk;
+
+    // -1 - ожидается байт длины следующего пакета
+    private int payloadLength = -1;
+    private int filled;
+
+    // Накопленные биты текущей группы из 4 символов Base64
+    private int bits;
+    private int bitsCount;
+
+    // Получатель текущего вызова feed: полные Payload или представления
+    private Consumer<Main.Payload> payloadSink;
+    private Consumer<PayloadView> viewSink;
+    // Представления, возвращенные получателями через PayloadView.release
+    private final MpscRing<PayloadView> views = new MpscRing<>(1024);
+    // Журнал прочитанных пакетов, если задан
+    private FrameJournal.Appender journal;
+    private HubMetrics metrics = HubMetrics.DEFAULT;
+
+    public void setJournal(FrameJournal.Appender journal) {
+        this.journal = journal;
+    }
+
+    public void setMetrics(HubMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Читает поток до конца и передает декодированные пакеты в sink.
+    public void decode(InputStream in, Consumer<Main.Payload> sink) throws IOException {
+        int read;
+        while ((read = in.read(chunk)) != -1)
+            feed(chunk, 0, read, sink);
+        finish();
+    }
+
+    public void decode(ReadableByteChannel channel, Consumer<Main.Payload> sink) throws IOException {
+        if (channelChunk == null)
+            channelChunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        ByteBuffer buffer = channelChunk;
+        buffer.clear();
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            feed(buffer, sink);
+            buffer.clear();
+        }
+        finish();
+    }
+
+    public void feed(byte[] array, int offset, int length, Consumer<Main.Payload> sink) {
+        payloadSink = sink;
+        viewSink = null;
+        feed(array, offset, length);
+    }
+
+    public void feed(ByteBuffer buffer, Consumer<Main.Payload> sink) {
+        payloadSink = sink;
+        viewSink = null;
+        feed(buffer);
+    }
+
+    // То же, но пакеты передаются как PayloadView. Получатель вызывает release, когда представление больше не нужно.
+    public void feedViews(byte[] array, int offset, int length, Consumer<PayloadView> sink) {
+        payloadSink = null;
+        viewSink = sink;
+        feed(array, offset, length);
+    }
+
+    public void feedViews(ByteBuffer buffer, Consumer<PayloadView> sink) {
+        payloadSink = null;
+        viewSink = sink;
+        feed(buffer);
+    }
+
+    // Пакеты без Base64 (байт длины, payload, crc8), например из FrameJournal
+    public void feedFramesViews(ByteBuffer frames, Consumer<PayloadView> sink) {
+        payloadSink = null;
+        viewSink = sink;
+        while (frames.hasRemaining())
+            feedByte(frames.get());
+        finish();
+    }
+
+    private void feed(byte[] array, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+            feedChar(array[i]);
+    }
+
+    private void feed(ByteBuffer buffer) {
+        while (buffer.hasRemaining())
+            feedChar(buffer.get());
+    }
+
+    // Завершает текущий ответ. Незаконченный пакет отбрасывается.
+    public void finish() {
+        payloadLength = -1;
+        filled = 0;
+        bits = 0;
+        bitsCount = 0;
+    }
+
+    private void feedChar(byte c) {
+        if (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '=')
+            return;
+        int value = c >= 0 ? ALPHABET[c] : -1;
+        if (value < 0)
+            throw new IllegalArgumentException("Illegal base64 character " + Integer.toHexString(c & 0xff));
+
+        bits = (bits << 6) | value;
+        bitsCount += 6;
+        if (bitsCount >= 8) {
+            bitsCount -= 8;
+            feedByte((byte) (bits >> bitsCount));
+            bits &= (1 << bitsCount) - 1;
+        }
+    }
+
+    private void feedByte(byte b) {
+        if (payloadLength < 0) {
+            payloadLength = b & 0xff;
+            filled = 0;
+            return;
+        }
+        frame[filled++] = b;
+        if (filled <= payloadLength)
+            return;
+
+        int crc8 = frame[payloadLength] & 0xff;
+        if (crc8 == Crc8.compute(frame, 0, payloadLength)) {
+            metrics.framesDecoded.increment();
+            if (journal != null)
+                journal.inbound(payloadLength, frame);
+            if (viewSink != null) {
+                PayloadView view = views.poll();
+                if (view == null)
+                    view = new PayloadView(views);
+                viewSink.accept(view.wrap(frame, 0, payloadLength));
+            } else {
+                frameBuffer.clear();
+                Main.Payload payload = Main.decodePayload(frameBuffer);
+                if (payload != null)
+                    payloadSink.accept(payload);
+            }
+        } else {
+            metrics.crcFailures.increment();
+        }
+        payloadLength = -1;
+    }
+}
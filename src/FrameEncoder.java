@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Собирает исходящие пакеты (байт длины, payload, crc8) в переиспользуемом буфере
+// и кодирует их в URL-encoded Base64 прямо в поток запроса.
+// В один буфер можно записать несколько пакетов подряд - они уйдут одним сообщением.
+public class FrameEncoder {
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<FrameEncoder> LOCAL = ThreadLocal.withInitial(FrameEncoder::new);
+
+    private byte[] buffer = new byte[512];
+    private byte[] encoded = new byte[684];
+    private int size;
+    private int frameStart = -1;
+    private long causeNanos;
+    private final Uleb128.Cursor cursor = new Uleb128.Cursor();
+
+    // Возвращает очищенный кодировщик текущего потока для разовой отправки.
+    public static FrameEncoder get() {
+        return LOCAL.get().reset();
+    }
+
+    public FrameEncoder reset() {
+        size = 0;
+        frameStart = -1;
+        causeNanos = 0;
+        return this;
+    }
+
+    // Отмечает время получения пакета, в ответ на который записываются пакеты; хранится самое раннее
+    public void markCause(long receivedNanos) {
+        if (receivedNanos != 0 && (causeNanos == 0 || receivedNanos - causeNanos < 0))
+            causeNanos = receivedNanos;
+    }
+
+    public long getCauseNanos() {
+        return causeNanos;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Записанные пакеты без кодирования (байт длины, payload, crc8), первые size() байт массива.
+    // Массив действителен до следующей записи.
+    public byte[] getFrames() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Дописывает пакеты из other
+    public FrameEncoder append(FrameEncoder other) {
+        ensureCapacity(other.size);
+        System.arraycopy(other.buffer, 0, buffer, size, other.size);
+        size += other.size;
+        markCause(other.causeNanos);
+        return this;
+    }
+
+    // Дописывает пакеты из other, заменяя их serial следующими из serials в порядке пакетов
+    public FrameEncoder append(FrameEncoder other, SerialAllocator serials) {
+        byte[] source = other.buffer;
+        int position = 0;
+        while (position < other.size) {
+            int start = position + 1;
+            int end = start + (source[position] & 0xff);
+            cursor.reset(source, start);
+            int src = cursor.readInt();
+            int dst = cursor.readInt();
+            cursor.readInt();
+            int header = cursor.getPosition();
+            beginFrame(src, dst, serials.next(), source[header] & 0xff, source[header + 1] & 0xff);
+            System.arraycopy(source, header + 2, buffer, size, end - header - 2);
+            size += end - header - 2;
+            endFrame();
+            position = end + 1;
+        }
+        markCause(other.causeNanos);
+        return this;
+    }
+
+    // Начинает новый пакет: резервирует байт длины и записывает заголовок payload.
+    public FrameEncoder beginFrame(int src, int dst, int serial, int devType, int cmd) {
+        ensureCapacity(256);
+        frameStart = size;
+        size++;
+        size = Uleb128.write(buffer, size, src);
+        size = Uleb128.write(buffer, size, dst);
+        size = Uleb128.write(buffer, size, serial);
+        buffer[size++] = (byte) devType;
+        buffer[size++] = (byte) cmd;
+        return this;
+    }
+
+    public FrameEncoder writeByte(int value) {
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    public FrameEncoder writeUleb128(long value) {
+        size = Uleb128.write(buffer, size, value);
+        return this;
+    }
+
+    // Записывает строку: байт длины и символы.
+    public FrameEncoder writeString(String value) {
+        buffer[size++] = (byte) value.length();
+        for (int i = 0; i < value.length(); i++)
+            buffer[size++] = (byte) value.charAt(i);
+        return this;
+    }
+
+    // Заканчивает пакет: записывает длину payload в начало и crc8 в конец.
+    public FrameEncoder endFrame() {
+        int payloadLength = size - frameStart - 1;
+        if (payloadLength > 255)
+            throw new IllegalStateException("Payload is too long: " + payloadLength);
+        buffer[frameStart] = (byte) payloadLength;
+        buffer[size] = (byte) Crc8.compute(buffer, frameStart + 1, payloadLength);
+        size++;
+        frameStart = -1;
+        return this;
+    }
+
+    // Длина записанных пакетов в Base64 без выравнивания.
+    public int encodedLength() {
+        int rest = size % 3;
+        return size / 3 * 4 + (rest == 0 ? 0 : rest + 1);
+    }
+
+    // Кодирует все записанные пакеты в Base64 без выравнивания и пишет в out.
+    public void writeTo(OutputStream out) throws IOException {
+        int length = encode();
+        out.write(encoded, 0, length);
+    }
+
+    public String toBase64() {
+        int length = encode();
+        return new String(encoded, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private int encode() {
+        int required = (size / 3) * 4 + 3;
+        if (encoded.length < required)
+            encoded = new byte[Math.max(required, encoded.length * 2)];
+
+        int out = 0;
+        int i = 0;
+        int full = size - size % 3;
+        while (i < full) {
+            int bits = (buffer[i++] & 0xff) << 16 | (buffer[i++] & 0xff) << 8 | (buffer[i++] & 0xff);
+            encoded[out++] = ALPHABET[(bits >>> 18) & 0x3f];
+            encoded[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            encoded[out++] = ALPHABET[(bits >>> 6) & 0x3f];
+            encoded[out++] = ALPHABET[bits & 0x3f];
+        }
+        int rest = size - full;
+        if (rest == 1) {
+            int bits = (buffer[i] & 0xff) << 16;
+            encoded[out++] = ALPHABET[(bits >>> 18) & 0x3f];
+            encoded[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+        } else if (rest == 2) {
+            int bits = (buffer[i] & 0xff) << 16 | (buffer[i + 1] & 0xff) << 8;
+            encoded[out++] = ALPHABET[(bits >>> 18) & 0x3f];
+            encoded[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            encoded[out++] = ALPHABET[(bits >>> 6) & 0x3f];
+        }
+        return out;
+    }
+
+    // Гарантирует место под еще один пакет максимального размера вместе с crc8.
+    private void ensureCapacity(int frameSize) {
+        if (buffer.length - size >= frameSize + 1)
+            return;
+        byte[] grown = new byte[Math.max(buffer.length * 2, size + frameSize + 1)];
+        System.arraycopy(buffer, 0, grown, 0, size);
+        buffer = grown;
+    }
+}
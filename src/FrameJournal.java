@@ -0,0 +1,267 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Журнал пакетов хабов: входящие и исходящие пакеты без Base64 (байт длины, payload, crc8) со временем сервера (TICK).
+// Пишется в отображаемые в память файлы-сегменты journal-NNNNNNNN.bin; заполненный сегмент закрывается и начинается новый,
+// существующие сегменты не перезаписываются.
+//
+//   запись: длина (4 байта, без самого поля), направление (1), сессия (2), адрес хаба (2), время сервера (8), пакеты
+//   длина 0 - конец записей сегмента
+//   запись SESSION в начале работы хаба: число частей хаба (4), число устройств, загруженных из снимка (4)
+//
+// Номер сессии выдается каждому Appender: хабы с одним адресом на разных серверах пишут в журнал разные сессии.
+// Номера начинаются с нуля при каждом запуске; записи каждой сессии начинаются с SESSION, по ней сессия начинается заново.
+//
+// Хаб пишет в свой Appender, записи копятся в буфере и передаются потоку журнала пачкой (flush) через MpscRing.
+// Поток хаба никогда не ждет запись на диск: если очередь журнала заполнена, пачка отбрасывается и учитывается в getDropped.
+// fsync не выполняется, данные на диск сбрасывает ОС; при закрытии сегменты сбрасываются явно.
+public class FrameJournal implements Closeable {
+    public static final byte INBOUND = 0;
+    public static final byte OUTBOUND = 1;
+    public static final byte SESSION = 2;
+
+    private static final int RECORD_HEADER = 4 + 1 + 2 + 2 + 8;
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int QUEUE_CAPACITY = 1 << 10;
+    // Пачка-отметка закрытия журнала
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private final Path dir;
+    private final int segmentSize;
+    private final MpscRing<ByteBuffer> queue = new MpscRing<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ByteBuffer> spare = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    private int segment;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile long written;
+    private volatile int segments;
+    private volatile IOException failure;
+
+    public FrameJournal(Path dir, int segmentSize) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.segmentSize = segmentSize;
+        List<Path> existing = segments(dir);
+        this.segment = existing.isEmpty() ? 0 : segmentNumber(existing.get(existing.size() - 1)) + 1;
+        this.writer = new Thread(this::write, "hub-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Журнал по системным свойствам hub.journal.dir и hub.journal.segment (МБ, по умолчанию 64), null если журнал выключен
+    public static FrameJournal open() throws IOException {
+        String dir = System.getProperty("hub.journal.dir");
+        if (dir == null)
+            return null;
+        return new FrameJournal(Path.of(dir), Integer.getInteger("hub.journal.segment", 64) << 20);
+    }
+
+    // Журнал новой сессии хаба hubAddress
+    public Appender appender(int hubAddress) {
+        return new Appender(sessions.getAndIncrement(), hubAddress);
+    }
+
+    // Записывает оставшиеся пачки, сбрасывает и закрывает текущий сегмент
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(CLOSE);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    public long getRecords() {
+        return records.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "FrameJournal{dir=" + dir +
+                ", segments=" + segments +
+                ", records=" + getRecords() +
+                ", bytes=" + written +
+                ", dropped=" + getDropped() +
+                ", queue=" + queue +
+                '}';
+    }
+
+    // Поток журнала: переносит пачки в сегменты
+    private void write() {
+        try {
+            while (true) {
+                ByteBuffer chunk = queue.take();
+                if (chunk == CLOSE)
+                    break;
+                if (failure == null) {
+                    try {
+                        append(chunk);
+                    } catch (IOException e) {
+                        // журнал больше не пишется, хаб продолжает работу
+                        failure = e;
+                        System.err.println("Journal " + dir + " failed: " + e);
+                    }
+                }
+                if (chunk.capacity() == CHUNK_SIZE)
+                    spare.offer(chunk.clear());
+            }
+            closeSegment();
+        } catch (InterruptedException e) {
+            // остановка
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void append(ByteBuffer chunk) throws IOException {
+        // Пачка не делится между сегментами; в конце сегмента остается место под отметку конца
+        if (mapped == null || mapped.remaining() < chunk.remaining() + 4) {
+            closeSegment();
+            Path path = dir.resolve(String.format("journal-%08d.bin", segment++));
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, chunk.remaining() + 4));
+            segments++;
+        }
+        written += chunk.remaining();
+        mapped.put(chunk);
+    }
+
+    private void closeSegment() throws IOException {
+        if (mapped == null)
+            return;
+        mapped.force();
+        channel.close();
+        mapped = null;
+        channel = null;
+    }
+
+    // Журнал одного хаба. Не потокобезопасен: используется потоком, который ведет хаб.
+    public final class Appender {
+        private final int session;
+        private final int hubAddress;
+        private ByteBuffer chunk;
+        // Записи в chunk; учитываются в getRecords, когда пачка принята очередью журнала
+        private int chunkRecords;
+        // Время сервера, которым помечаются записи
+        private long tick;
+
+        private Appender(int session, int hubAddress) {
+            this.session = session;
+            this.hubAddress = hubAddress;
+        }
+
+        public void setTick(long tick) {
+            this.tick = tick;
+        }
+
+        // Пакет, прочитанный декодером: длина payload и frame с payload и crc8
+        public void inbound(int payloadLength, byte[] frame) {
+            ByteBuffer out = begin(INBOUND, payloadLength + 2);
+            out.put((byte) payloadLength).put(frame, 0, payloadLength + 1);
+        }
+
+        // Режим работы хаба: без него журнал нельзя воспроизвести (JournalReplay)
+        public void session(int shards, int restored) {
+            begin(SESSION, 8).putInt(shards).putInt(restored);
+        }
+
+        // Пакеты, отправляемые одним запросом (пустой запрос - запись без пакетов)
+        public void outbound(FrameEncoder frames) {
+            begin(OUTBOUND, frames.size()).put(frames.getFrames(), 0, frames.size());
+        }
+
+        // Передает накопленные записи потоку журнала
+        public void flush() {
+            if (chunk == null || chunk.position() == 0)
+                return;
+            if (queue.offer(chunk.flip()))
+                records.add(chunkRecords);
+            else
+                dropped.increment();
+            chunk = null;
+            chunkRecords = 0;
+        }
+
+        private ByteBuffer begin(byte direction, int length) {
+            int size = RECORD_HEADER + length;
+            if (chunk != null && chunk.remaining() < size)
+                flush();
+            if (chunk == null) {
+                chunk = size <= CHUNK_SIZE ? spare.poll() : null;
+                if (chunk == null)
+                    chunk = ByteBuffer.allocate(Math.max(CHUNK_SIZE, size));
+            }
+            chunkRecords++;
+            return chunk.putInt(size - 4).put(direction).putShort((short) session).putShort((short) hubAddress).putLong(tick);
+        }
+    }
+
+    // Получатель записей при чтении журнала. data действителен только во время вызова.
+    public interface RecordConsumer {
+        void accept(byte direction, int session, int hubAddress, long tick, ByteBuffer data) throws IOException;
+    }
+
+    // Читает все сегменты каталога по порядку. Возвращает число записей.
+    public static long read(Path dir, RecordConsumer consumer) throws IOException {
+        long count = 0;
+        for (Path path : segments(dir)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (mapped.remaining() >= 4) {
+                    int length = mapped.getInt();
+                    if (length == 0)
+                        break;
+                    int start = mapped.position();
+                    byte direction = mapped.get();
+                    int session = mapped.getShort() & 0xffff;
+                    int hubAddress = mapped.getShort() & 0xffff;
+                    long tick = mapped.getLong();
+                    consumer.accept(direction, session, hubAddress, tick, mapped.slice(mapped.position(), start + length - mapped.position()));
+                    mapped.position(start + length);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> p.getFileName().toString().matches("journal-\\d{8}\\.bin"))
+                    .sorted()
+                    .forEach(segments::add);
+        }
+        return segments;
+    }
+
+    private static int segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring("journal-".length(), name.length() - ".bin".length()));
+    }
+}
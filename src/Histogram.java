@@ -0,0 +1,110 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Гистограмма значений в логарифмически-линейных корзинах (как HdrHistogram): значения до 32 хранятся точно,
+// дальше каждая степень двойки делится на 16 корзин, т.е. погрешность не больше 1/16.
+// Запись - одна атомарная операция без выделения памяти, писать можно из нескольких потоков.
+public class Histogram {
+    private static final int EXACT = 32;
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = EXACT + (64 - SUB_BITS - 1) * SUB;
+
+    private final String name;
+    private final String unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+    }
+
+    // Добавляет записи другой гистограммы с теми же корзинами
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0)
+                counts.addAndGet(i, count);
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // Значение, не меньше которого percentile процентов записей (верхняя граница корзины)
+    public long getPercentile(double percentile) {
+        long count = total.sum();
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1))
+                return upperBound(i);
+        }
+        return getMax();
+    }
+
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0)
+                return upperBound(i);
+        }
+        return 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    static int index(long value) {
+        if (value < EXACT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int mantissa = (int) (value >>> shift) - SUB;
+        return EXACT + (shift - 1) * SUB + mantissa;
+    }
+
+    static long upperBound(int index) {
+        if (index < EXACT)
+            return index;
+        int shift = (index - EXACT) / SUB + 1;
+        long mantissa = (index - EXACT) % SUB + SUB;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return name + "{count=" + getCount() +
+                ", mean=" + Math.round(getMean()) +
+                ", p50=" + getPercentile(50) +
+                ", p90=" + getPercentile(90) +
+                ", p99=" + getPercentile(99) +
+                ", max=" + getMax() +
+                (unit.isEmpty() ? "" : ", unit=" + unit) +
+                '}';
+    }
+}
@@ -0,0 +1,483 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+// Логика хаба без сетевой части: реестр устройств, их состояния, триггеры датчиков и ожидающие запросы.
+// На каждый входящий пакет handle дописывает ответные пакеты в frames; отправляет их вызывающая сторона.
+// Экземпляр не потокобезопасен и должен использоваться одним потоком.
+//
+// Экземпляр может быть одним из shards частей хаба (ShardedDispatcher). Тогда реестр устройств есть у каждой части,
+// а состояния, ожидающие запросы и триггеры - только для своих адресов (address % shards == shard).
+// Действия над чужими устройствами (SETSTATUS, удаление) передаются их частям через Remote.
+public class HubDispatcher {
+    private final int hubAddress;
+    // serial исходящих пакетов этого хаба, общий для всех частей
+    private final SerialAllocator serials;
+    private final int shard;
+    private final int shards;
+    private Remote remote;
+    // Устройства по адресу и по имени
+    private final DeviceRegistry devices = new DeviceRegistry(Main.BROADCAST_ADDRESS);
+    // Индекс - адрес EnvSensor, Значение - его скомпилированные триггеры
+    private final TriggerIndex[] triggerIndexes = new TriggerIndex[Main.BROADCAST_ADDRESS + 1];
+    // Ключ - имя целевого устройства, Значение - адреса EnvSensor, триггеры которых на него ссылаются.
+    // При появлении или удалении устройства перекомпилируются только эти сенсоры.
+    private final Map<String, Set<Integer>> sensorsByTarget = new HashMap<>();
+    // Последние известные состояния устройств
+    private final DeviceStates states = new DeviceStates(Main.BROADCAST_ADDRESS);
+    // Запросы, ожидающие ответа устройств
+    // Устройство удаляется, если оно не ответило за 300мс
+    private final PendingRequests pending = new PendingRequests();
+    private final IntConsumer evict = this::evict;
+    // Снимок реестра для быстрого перезапуска, если задан
+    private RegistrySnapshot snapshot;
+    // Набор устройств изменился после последнего сохранения снимка
+    private boolean snapshotDirty;
+    private HubMetrics metrics = HubMetrics.DEFAULT;
+    // Показания EnvSensor текущего пакета
+    private final double[] values = new double[256];
+
+    // Обнаружение устройств длится 300мс после WHOISHERE
+    public static final long DISCOVERY_TIME = 300;
+
+    // Запланированные действия во времени сервера
+    private final TimerWheel<FrameEncoder> timers = new TimerWheel<>(10, 256);
+    // Действия, поставленные до первого TICK
+    private final List<TimerWheel.Timeout<FrameEncoder>> deferred = new ArrayList<>();
+
+    // Текущее время сервера, обновляется по пакетам 0x06 - TICK
+    private long now;
+    private boolean started;
+    private boolean discovering;
+
+    public HubDispatcher(int hubAddress) {
+        this(hubAddress, new SerialAllocator(), 0, 1);
+    }
+
+    HubDispatcher(int hubAddress, SerialAllocator serials, int shard, int shards) {
+        this.hubAddress = hubAddress;
+        this.serials = serials;
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    // Сообщения частям хаба, которым принадлежат устройства
+    interface Remote {
+        // SETSTATUS устройству части shard; force - отправить, даже если устройство уже в состоянии value
+        void setStatus(int shard, int address, int devType, byte value, boolean force, long causeNanos);
+
+        // Устройство удалено, остальные части убирают его из своих реестров
+        void removed(int address);
+    }
+
+    void setRemote(Remote remote) {
+        this.remote = remote;
+    }
+
+    public void setMetrics(HubMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Часть хаба, которой принадлежит устройство
+    public int shardOf(int address) {
+        return address % shards;
+    }
+
+    private boolean owns(int address) {
+        return address % shards == shard;
+    }
+
+    // Начинает обнаружение устройств: WHOISHERE дописывается в frames, ответы IAMHERE собираются в течение
+    // DISCOVERY_TIME, после чего в очередной пакет уходит исходный опрос всех устройств (sweep), его итог передается в onSweep.
+    // Из частей хаба WHOISHERE отправляет первая, исходный опрос каждая проводит для своих устройств.
+    public void startDiscovery(FrameEncoder frames, Consumer<Sweep> onSweep) {
+        if (shard == 0)
+            Main.encodePayloadWhoIsHere(frames, serials, hubAddress, Main.BROADCAST_ADDRESS, 1);
+        discovering = true;
+        schedule(DISCOVERY_TIME, out -> {
+            discovering = false;
+            rebuildTriggerIndexes();
+            devicesChanged();
+            sweep(out).thenAccept(onSweep);
+        });
+    }
+
+    // Загружает устройства и состояния из снимка и дальше сохраняет в него изменения.
+    // Хаб сразу обслуживает загруженные устройства, а обнаружение и исходный опрос (startDiscovery) сверяют снимок с сетью:
+    // новые устройства добавятся по IAMHERE, не ответившие на GETSTATUS будут удалены.
+    public int restore(RegistrySnapshot snapshot) throws IOException {
+        this.snapshot = snapshot;
+        int loaded = snapshot.load(hubAddress, devices, states);
+        rebuildTriggerIndexes();
+        return loaded;
+    }
+
+    // Ставит действие через delay мс времени сервера. Действие выполняется при обработке TICK и может дописывать пакеты в frames.
+    // До первого TICK время неизвестно, поэтому отсчет таких действий начинается с него.
+    public TimerWheel.Timeout<FrameEncoder> schedule(long delay, TimerWheel.Task<FrameEncoder> action) {
+        if (started)
+            return timers.schedule(now + delay, action);
+        TimerWheel.Timeout<FrameEncoder> timeout = timers.schedule(delay, action);
+        deferred.add(timeout);
+        return timeout;
+    }
+
+    // Запрос исходного состояния устройства. Future завершается ответом STATUS или таймаутом, null для TIMER.
+    public CompletableFuture<Integer> encodeGetStatus(FrameEncoder frames, Main.Device device) {
+        Main.encodePayloadGetStatus(frames, serials, hubAddress, device.getAddress(), device.getDevType());
+        // 0x06 - TIMER не отвечает на GETSTATUS
+        if (device.getDevType() == 6)
+            return null;
+        return expectAnswer(device.getAddress());
+    }
+
+    // Ждет ответа STATUS от address на только что записанный запрос. До первого TICK now = 0, поэтому срок относительный;
+    // с первым TICK он переносится на время сервера (PendingRequests.rebase).
+    private CompletableFuture<Integer> expectAnswer(int address) {
+        return pending.register(address, now + PendingRequests.TIMEOUT);
+    }
+
+    // Исходный опрос: запросы GETSTATUS ко всем устройствам дописываются в frames, чтобы уйти одним запросом.
+    // Future завершается, когда все устройства ответили или были удалены по таймауту.
+    public CompletableFuture<Sweep> sweep(FrameEncoder frames) {
+        Sweep sweep = new Sweep(now, System.nanoTime());
+        List<CompletableFuture<Integer>> answers = new ArrayList<>(devices.size());
+        devices.forEach(d -> {
+            if (!owns(d.getAddress()))
+                return;
+            CompletableFuture<Integer> answer = encodeGetStatus(frames, d);
+            if (answer != null)
+                answers.add(answer.whenComplete((status, timeout) -> {
+                    if (timeout == null)
+                        sweep.answered++;
+                }));
+        });
+        sweep.requested = answers.size();
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, timeout) -> sweep.finish(now));
+    }
+
+    // Обрабатывает входящий пакет. Пакеты, которые нужно отправить в ответ, дописываются в frames.
+    // Представление действительно только во время вызова; полный Payload строится лишь для описаний устройств.
+    public void handle(PayloadView payload, FrameEncoder frames) {
+        switch (payload.getCmd()) {
+
+            // 0x01 - WHOISHERE
+            case 1 -> {
+                int address = payload.getSrc();
+                int type = payload.getDevType();
+                Main.Device device = toDevice(payload);
+                Main.Device previous = devices.get(address);
+                devices.put(device);
+                deviceAdded(device, previous);
+                if (!owns(address))
+                    return;
+
+                // Ответ IAMHERE
+                Main.encodePayloadIAmHere(frames, serials, hubAddress);
+
+                // Запрос GETSTATUS, 0x06 - TIMER не опрашивается
+                if (type != 6) {
+                    Main.encodePayloadGetStatus(frames, serials, hubAddress, address, type);
+                    expectAnswer(address);
+                }
+            }
+
+            // 0x04 - STATUS
+            case 4 -> {
+                // Ответ на GETSTATUS или SETSTATUS снимает ожидание, состояние переключателя или датчика обрабатывается как обычно
+                pending.complete(payload.getSrc(), payload.getSerial());
+
+                // 0x03 - Switch, 0x04 - Lamp, 0x05 - Socket сообщают свое состояние
+                int type = payload.getDevType();
+                if (type >= 3 && type <= 5) {
+                    states.set(payload.getSrc(), payload.isTurnOn());
+                    if (snapshot != null)
+                        snapshot.setState(payload.getSrc(), states.get(payload.getSrc()));
+                }
+
+                // Все SETSTATUS по одному событию уходят одним запросом
+                if (type == 3) // 0x03 - SWITCH
+                    handleSwitch(payload, frames);
+                else if (type == 2) // 0x02 - EnvSensor
+                    handleEnvSensor(payload, frames);
+            }
+
+            // 0x06 - TICK
+            case 6 -> {
+                // Ответы разных соединений могут приходить не по порядку, время не идет назад
+                now = Math.max(now, payload.getTimestamp());
+                if (!started) {
+                    started = true;
+                    for (TimerWheel.Timeout<FrameEncoder> timeout : deferred) {
+                        if (timeout.isPending())
+                            timeout.reschedule(now + timeout.getDeadline());
+                    }
+                    deferred.clear();
+                    // Сроки ответов на запросы, отправленные до первого TICK, тоже отсчитываются от него
+                    pending.rebase(now);
+                }
+                // Все истекшие сроки ответов и запланированные действия за один проход колеса
+                pending.expire(now, evict);
+                timers.advance(now, frames);
+            }
+
+            // 0x02 - IAMHERE
+            case 2 -> {
+                // Индексы триггеров строятся один раз по окончании обнаружения
+                if (discovering)
+                    devices.put(toDevice(payload));
+            }
+
+            // 0x03 - GETSTATUS
+            // 0x05 - SETSTATUS
+            default -> {
+
+            }
+        }
+    }
+
+    // Описание устройства из WHOISHERE или IAMHERE
+    private static Main.Device toDevice(PayloadView payload) {
+        Main.DeviceBody body = (Main.DeviceBody) payload.toPayload().getCmdBody();
+        return new Main.Device(body.getName(), payload.getSrc(), payload.getDevType(), body.getProps());
+    }
+
+    private void handleSwitch(PayloadView payload, FrameEncoder frames) {
+        byte value = payload.isTurnOn() ? (byte) 1 : (byte) 0;
+        Main.Device currSwitch = devices.get(payload.getSrc());
+        if (currSwitch == null)
+            return;
+
+        for (String s : ((Main.SwitchProps) currSwitch.getDevProps()).getDevNames()) {
+            Main.Device lampOrSocket = devices.get(s);
+            if (lampOrSocket == null)
+                continue;
+            setStatus(lampOrSocket.getAddress(), lampOrSocket.getDevType(), value, false, payload.getReceivedNanos(), frames);
+        }
+    }
+
+    // SETSTATUS устройству address, если оно еще не в состоянии value или force. Чужое устройство передается его части.
+    public void setStatus(int address, int devType, byte value, boolean force, long causeNanos, FrameEncoder frames) {
+        if (!owns(address)) {
+            remote.setStatus(shardOf(address), address, devType, value, force, causeNanos);
+            return;
+        }
+        // Устройство уже в нужном состоянии
+        if (!force && states.is(address, value))
+            return;
+
+        Main.encodePayloadSetStatus(frames, serials, hubAddress, address, devType, value);
+        frames.markCause(causeNanos);
+        expectAnswer(address);
+        // Пока ответ не пришел, устройство считается уже в состоянии value
+        states.set(address, value);
+    }
+
+    private void handleEnvSensor(PayloadView payload, FrameEncoder frames) {
+        TriggerIndex index = triggerIndexes[payload.getSrc()];
+        if (index == null)
+            return;
+
+        int fired = index.evaluate(values, payload.getValues(values), states);
+        for (int i = 0; i < fired; i++) {
+            int t = index.getFired(i);
+            int devAddress = index.getTargetAddress(t);
+
+            // включить или выключить; состояние своих устройств уже проверено в evaluate
+            if (owns(devAddress)) {
+                Main.encodePayloadSetStatus(frames, serials, hubAddress, devAddress, index.getTargetType(t), index.getOnOff(t));
+                frames.markCause(payload.getReceivedNanos());
+                expectAnswer(devAddress);
+                states.set(devAddress, index.getOnOff(t));
+            } else {
+                remote.setStatus(shardOf(devAddress), devAddress, index.getTargetType(t), index.getOnOff(t),
+                        index.isCrossed(i), payload.getReceivedNanos());
+            }
+        }
+    }
+
+    private void evict(int address) {
+        metrics.evictions.increment();
+        remove(address);
+        if (remote != null)
+            remote.removed(address);
+    }
+
+    // Удаляет устройство из реестра; для другой части хаба - по сообщению Remote.removed
+    void remove(int address) {
+        states.clear(address);
+        Main.Device previous = devices.remove(address);
+        if (previous == null)
+            return;
+        unregisterTriggers(previous);
+        triggerIndexes[address] = null;
+        recompileTriggers(previous.getName());
+        devicesChanged();
+    }
+
+    // Устройство появилось или заменило previous с тем же адресом: его триггеры компилируются заново,
+    // как и триггеры сенсоров, ссылающихся на его имя (или прежнее имя) - по нему теперь находится другой адрес.
+    private void deviceAdded(Main.Device device, Main.Device previous) {
+        int address = device.getAddress();
+        if (previous != null)
+            unregisterTriggers(previous);
+        TriggerIndex index = triggerIndexes[address];
+        triggerIndexes[address] = null;
+        registerTriggers(device, index);
+        recompileTriggers(device.getName());
+        if (previous != null && !previous.getName().equals(device.getName()))
+            recompileTriggers(previous.getName());
+        devicesChanged();
+    }
+
+    // Набор устройств изменился: отметить снимок для сохранения.
+    // Во время обнаружения снимок не отмечается, он сохраняется один раз по его окончании.
+    private void devicesChanged() {
+        if (snapshot != null && !discovering)
+            snapshotDirty = true;
+    }
+
+    // Переписывает снимок, если набор устройств изменился. Вызывается один раз на обмен с сервером,
+    // поэтому несколько удалений или появлений устройств за один ответ дают одну запись файла.
+    public void saveSnapshot() {
+        if (!snapshotDirty)
+            return;
+        snapshotDirty = false;
+        try {
+            snapshot.save(hubAddress, devices, states);
+        } catch (IOException e) {
+            System.err.println("Snapshot " + snapshot.getPath() + " is not saved: " + e);
+            snapshot = null;
+        }
+    }
+
+    // Перестраивает индексы триггеров всех EnvSensor. Вызывается по окончании обнаружения и после загрузки снимка,
+    // когда устройства добавлялись в реестр без deviceAdded.
+    private void rebuildTriggerIndexes() {
+        sensorsByTarget.clear();
+        devices.forEach(d -> {
+            TriggerIndex index = triggerIndexes[d.getAddress()];
+            triggerIndexes[d.getAddress()] = null;
+            registerTriggers(d, index);
+        });
+    }
+
+    // Компилирует триггеры своего EnvSensor и запоминает имена его целевых устройств; previous - его прежний индекс
+    private void registerTriggers(Main.Device sensor, TriggerIndex previous) {
+        if (!(sensor.getDevProps() instanceof Main.EnvSensorProps props) || sensor.getDevType() != 2 || !owns(sensor.getAddress()))
+            return;
+        for (Main.EnvSensorProps.Trigger trigger : props.getTriggers())
+            sensorsByTarget.computeIfAbsent(trigger.getDeviceName(), name -> new HashSet<>()).add(sensor.getAddress());
+        triggerIndexes[sensor.getAddress()] = TriggerIndex.compile(props, devices, previous);
+    }
+
+    private void unregisterTriggers(Main.Device sensor) {
+        if (!(sensor.getDevProps() instanceof Main.EnvSensorProps props))
+            return;
+        for (Main.EnvSensorProps.Trigger trigger : props.getTriggers()) {
+            Set<Integer> sensors = sensorsByTarget.get(trigger.getDeviceName());
+            if (sensors != null && sensors.remove(sensor.getAddress()) && sensors.isEmpty())
+                sensorsByTarget.remove(trigger.getDeviceName());
+        }
+    }
+
+    // Перекомпилирует триггеры сенсоров, ссылающихся на устройство с именем name
+    private void recompileTriggers(String name) {
+        Set<Integer> sensors = sensorsByTarget.get(name);
+        if (sensors == null)
+            return;
+        for (int address : sensors) {
+            Main.Device sensor = devices.get(address);
+            if (sensor != null && sensor.getDevProps() instanceof Main.EnvSensorProps props)
+                triggerIndexes[address] = TriggerIndex.compile(props, devices, triggerIndexes[address]);
+        }
+    }
+
+    public int getHubAddress() {
+        return hubAddress;
+    }
+
+    public SerialAllocator getSerials() {
+        return serials;
+    }
+
+    public DeviceRegistry getDevices() {
+        return devices;
+    }
+
+    public DeviceStates getStates() {
+        return states;
+    }
+
+    public PendingRequests getPending() {
+        return pending;
+    }
+
+    public long getNow() {
+        return now;
+    }
+
+    public boolean isDiscovering() {
+        return discovering;
+    }
+
+    // Итог исходного опроса
+    public static class Sweep {
+        private final long startTime;
+        private final long startNanos;
+        private int requested;
+        private int answered;
+        private long ticks;
+        private long nanos;
+
+        private Sweep(long startTime, long startNanos) {
+            this.startTime = startTime;
+            this.startNanos = startNanos;
+        }
+
+        private Sweep finish(long now) {
+            ticks = now - startTime;
+            nanos = System.nanoTime() - startNanos;
+            return this;
+        }
+
+        // Итог опроса нескольких частей хаба: запросы и ответы складываются, время - наибольшее
+        Sweep add(Sweep other) {
+            requested += other.requested;
+            answered += other.answered;
+            ticks = Math.max(ticks, other.ticks);
+            nanos = Math.max(nanos, other.nanos);
+            return this;
+        }
+
+        public int getRequested() {
+            return requested;
+        }
+
+        public int getAnswered() {
+            return answered;
+        }
+
+        public long getTicks() {
+            return ticks;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Sweep{requested=" + requested + ", answered=" + answered
+                    + ", ticks=" + ticks + ", ms=" + nanos / 1_000_000 + "}";
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+// Счетчики и гистограммы горячего пути хаба. Запись не выделяет память и безопасна из нескольких потоков.
+// У каждой сессии хаба свои метрики (create): dump выводит сумму по всем сессиям и строку каждой открытой сессии,
+// чтобы было видно, какой хаб отстает. Метрики закрытой сессии (close) остаются только в сумме.
+// DEFAULT - метрики вне сессий.
+// Снимок выводится в stderr при завершении, периодически (-Dhub.metrics.period=секунды)
+// и по запросу GET http://127.0.0.1:<порт>/metrics (-Dhub.metrics.port=порт).
+public final class HubMetrics {
+    private static final long START = System.nanoTime();
+    private static final List<HubMetrics> SESSIONS = new CopyOnWriteArrayList<>();
+    public static final HubMetrics DEFAULT = new HubMetrics("default");
+    // Сумма метрик закрытых сессий
+    private static final HubMetrics CLOSED = new HubMetrics("closed");
+
+    private final String name;
+
+    // Декодированные пакеты и пакеты с неверной crc8
+    public final LongAdder framesDecoded = new LongAdder();
+    public final LongAdder crcFailures = new LongAdder();
+    // Запросы к серверу: пустые опросы и запросы с пакетами
+    public final LongAdder polls = new LongAdder();
+    public final LongAdder sends = new LongAdder();
+    // Пустые опросы с Prefer: wait, которые сервер держал до появления пакетов
+    public final LongAdder longPolls = new LongAdder();
+    // Устройства, удаленные из-за отсутствия ответа
+    public final LongAdder evictions = new LongAdder();
+
+    // Время обмена с сервером, мкс
+    public final Histogram roundTrip = new Histogram("roundTrip", "us");
+    // Пустые опросы между двумя запросами с пакетами
+    public final Histogram pollsPerSend = new Histogram("pollsPerSend", "");
+    // Длина очереди входящих пакетов перед обработкой очередного пакета
+    public final Histogram queueDepth = new Histogram("queueDepth", "");
+    // От получения STATUS до отправки вызванного им SETSTATUS, мкс
+    public final Histogram statusToSetStatus = new Histogram("statusToSetStatus", "us");
+    // Пауза перед пустым опросом в простое, мкс
+    public final Histogram idleDelay = new Histogram("idleDelay", "us");
+
+    private final LongAdder pollsSinceSend = new LongAdder();
+
+    private HubMetrics(String name) {
+        this.name = name;
+    }
+
+    // Метрики одной сессии хаба name; выводятся в dump, пока сессия не закрыта
+    public static HubMetrics create(String name) {
+        HubMetrics metrics = new HubMetrics(name);
+        SESSIONS.add(metrics);
+        return metrics;
+    }
+
+    // Сессия закрыта: ее метрики переносятся в сумму закрытых сессий и больше не выводятся отдельно
+    public void close() {
+        synchronized (HubMetrics.class) {
+            if (SESSIONS.remove(this))
+                CLOSED.add(this);
+        }
+    }
+
+    // Учитывает один обмен с сервером. causeNanos - время получения STATUS, вызвавшего отправляемые SETSTATUS, или 0.
+    public void recordExchange(boolean empty, long startNanos, long endNanos, long causeNanos) {
+        roundTrip.record((endNanos - startNanos) / 1000);
+        if (empty) {
+            polls.increment();
+            pollsSinceSend.increment();
+            return;
+        }
+        sends.increment();
+        pollsPerSend.record(pollsSinceSend.sumThenReset());
+        if (causeNanos != 0)
+            statusToSetStatus.record((startNanos - causeNanos) / 1000);
+    }
+
+    public static synchronized void dump(PrintStream out) {
+        HubMetrics total = new HubMetrics("total");
+        total.add(DEFAULT);
+        total.add(CLOSED);
+        for (HubMetrics metrics : SESSIONS)
+            total.add(metrics);
+
+        double seconds = (System.nanoTime() - START) / 1e9;
+        long frames = total.framesDecoded.sum();
+        out.println("HubMetrics{uptime=" + Math.round(seconds) + "s" +
+                ", sessions=" + SESSIONS.size() +
+                ", framesDecoded=" + frames +
+                ", framesPerSecond=" + Math.round(seconds > 0 ? frames / seconds : 0) +
+                ", crcFailures=" + total.crcFailures.sum() +
+                ", polls=" + total.polls.sum() +
+                ", sends=" + total.sends.sum() +
+                ", longPolls=" + total.longPolls.sum() +
+                ", evictions=" + total.evictions.sum() + '}');
+        out.println("  " + total.roundTrip);
+        out.println("  " + total.pollsPerSend);
+        out.println("  " + total.queueDepth);
+        out.println("  " + total.statusToSetStatus);
+        out.println("  " + total.idleDelay);
+        for (HubMetrics metrics : SESSIONS)
+            out.println("  " + metrics);
+        out.println("  " + Main.NAMES);
+        out.println("  " + Main.ENV_SENSOR_PROPS);
+        out.println("  " + Main.SWITCH_PROPS);
+    }
+
+    private void add(HubMetrics other) {
+        framesDecoded.add(other.framesDecoded.sum());
+        crcFailures.add(other.crcFailures.sum());
+        polls.add(other.polls.sum());
+        sends.add(other.sends.sum());
+        longPolls.add(other.longPolls.sum());
+        evictions.add(other.evictions.sum());
+        roundTrip.add(other.roundTrip);
+        pollsPerSend.add(other.pollsPerSend);
+        queueDepth.add(other.queueDepth);
+        statusToSetStatus.add(other.statusToSetStatus);
+        idleDelay.add(other.idleDelay);
+    }
+
+    // Краткая строка метрик сессии
+    @Override
+    public String toString() {
+        return "HubMetrics{" + name +
+                ", framesDecoded=" + framesDecoded.sum() +
+                ", crcFailures=" + crcFailures.sum() +
+                ", polls=" + polls.sum() +
+                ", sends=" + sends.sum() +
+                ", longPolls=" + longPolls.sum() +
+                ", evictions=" + evictions.sum() +
+                ", roundTripP99=" + roundTrip.getPercentile(99) + "us" +
+                ", statusToSetStatusP99=" + statusToSetStatus.getPercentile(99) + "us" +
+                ", queueDepthMax=" + queueDepth.getMax() +
+                '}';
+    }
+
+    // Включает периодический вывод и/или endpoint по системным свойствам hub.metrics.period и hub.metrics.port
+    public static void startReporting() {
+        long period = Long.getLong("hub.metrics.period", 0);
+        if (period > 0) {
+            Thread reporter = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(period * 1000);
+                        dump(System.err);
+                    }
+                } catch (InterruptedException e) {
+                    // остановка
+                }
+            }, "hub-metrics");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+
+        int port = Integer.getInteger("hub.metrics.port", 0);
+        if (port > 0) {
+            try {
+                HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                server.createContext("/metrics", exchange -> {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    dump(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+                    byte[] body = buffer.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.start();
+            } catch (IOException e) {
+                System.err.println("Metrics endpoint is not available: " + e);
+            }
+        }
+    }
+}
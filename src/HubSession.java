@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Один хаб: соединение с сервером и логика HubDispatcher (устройства, состояния, serial).
+// step выполняет один обмен с сервером и обрабатывает полученные пакеты в один исходящий пакет.
+// Сессия однопоточная, поэтому пакеты обрабатываются сразу по мере декодирования ответа, без очереди;
+// их ответы копятся в следующем исходящем пакете, пока текущий отправляется.
+// Между вызовами step сессия не занимает поток, поэтому много сессий могут работать на общих потоках (HubSessions).
+// Вызовы step одной сессии не должны перекрываться.
+// Если задано свойство hub.snapshot.dir, реестр устройств сохраняется в снимок в этом каталоге,
+// и при перезапуске хаб начинает работу с устройствами из снимка (RegistrySnapshot).
+// Если задан журнал (FrameJournal), в него пишутся все отправленные и полученные пакеты.
+// Пустые опросы в простое реже или долгие (PollScheduler): паузу перед следующим step возвращает getIdleDelay.
+// Свойство hub.shards > 1 включает обработку пакетов на нескольких ядрах (ShardedDispatcher);
+// части выполняются на общем для всех сессий пуле shardExecutor.
+public class HubSession {
+    private final String name;
+    private final HubTransport transport;
+    private final HubDispatcher dispatcher;
+    // Части хаба по адресам устройств, если хаб разделен; тогда dispatcher не используется
+    private final ShardedDispatcher sharded;
+    private final Path snapshotPath;
+    private RegistrySnapshot snapshot;
+    private final FrameJournal.Appender journal;
+    private final HubMetrics metrics;
+
+    private final Consumer<PayloadView> dispatch = this::dispatch;
+
+    // Пакеты для следующего обмена и отправляемые в текущем обмене
+    private FrameEncoder frames = new FrameEncoder();
+    private FrameEncoder sending = new FrameEncoder();
+    private final PollScheduler poll = new PollScheduler();
+    // В последнем ответе были пакеты, кроме TICK
+    private boolean traffic;
+    private boolean started;
+    private int responseCode = 200;
+
+    public HubSession(URL url, int hubAddress) {
+        this(url, hubAddress, null);
+    }
+
+    public HubSession(URL url, int hubAddress, FrameJournal journal) {
+        this(url, hubAddress, journal, null);
+    }
+
+    // shardExecutor - пул частей хаба (ShardedDispatcher.newExecutor), null - без разделения на части
+    public HubSession(URL url, int hubAddress, FrameJournal journal, ExecutorService shardExecutor) {
+        this.name = Integer.toHexString(hubAddress) + "@" + url;
+        this.transport = new HubTransport(url);
+        this.dispatcher = new HubDispatcher(hubAddress);
+        this.metrics = HubMetrics.create(name);
+        int shards = Integer.getInteger("hub.shards", 1);
+        this.sharded = shards > 1 && shardExecutor != null ? new ShardedDispatcher(hubAddress, shards, shardExecutor) : null;
+        String dir = System.getProperty("hub.snapshot.dir");
+        this.snapshotPath = dir == null ? null
+                : Path.of(dir, "hub-" + Integer.toHexString(hubAddress) + "-" + Integer.toHexString(url.toString().hashCode()) + ".snapshot");
+        this.journal = journal != null ? journal.appender(hubAddress) : null;
+        transport.setJournal(this.journal);
+        transport.setMetrics(metrics);
+        dispatcher.setMetrics(metrics);
+        poll.setMetrics(metrics);
+        if (sharded != null)
+            sharded.setMetrics(metrics);
+    }
+
+    // Один обмен с сервером. Возвращает код ответа, -1 при ошибке сети; после кода, отличного от 200, сессия закрыта.
+    public int step() {
+        if (responseCode != 200)
+            return responseCode;
+        // WHOISHERE; по окончании обнаружения dispatcher сам добавит исходный опрос устройств в очередной пакет
+        if (!started) {
+            started = true;
+            Consumer<HubDispatcher.Sweep> onSweep = sweep -> System.err.println(name + " " + sweep);
+            if (sharded != null) {
+                sharded.startDiscovery(frames, onSweep);
+            } else {
+                restore();
+                dispatcher.startDiscovery(frames, onSweep);
+            }
+            // Устройства из снимка в журнал не попадают, JournalReplay по этой записи отказывается воспроизводить сессию
+            if (journal != null)
+                journal.session(sharded != null ? sharded.getShards() : 1, sharded != null ? 0 : dispatcher.getDevices().size());
+        }
+
+        if (journal != null) {
+            journal.setTick(sharded != null ? sharded.getNow() : dispatcher.getNow());
+            journal.outbound(frames);
+        }
+
+        // отправить накопленные пакеты или пустой запрос, ответы устройств придут в следующих пакетах STATUS;
+        // пакеты ответа обрабатываются в frames, пока отправляется sending
+        FrameEncoder next = sending;
+        sending = frames;
+        frames = next;
+        boolean empty = sending.isEmpty();
+        int wait = empty ? poll.waitSeconds() : 0;
+        traffic = false;
+        try {
+            responseCode = empty ? transport.poll(wait, dispatch) : transport.post(sending, dispatch);
+        } catch (IOException e) {
+            responseCode = -1;
+        }
+        sending.reset();
+        if (journal != null)
+            journal.flush();
+        if (responseCode != 200) {
+            close();
+            return responseCode;
+        }
+
+        if (sharded == null)
+            dispatcher.saveSnapshot();
+        if (sharded != null) {
+            try {
+                sharded.finish(frames);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                responseCode = -1;
+            }
+        }
+        poll.record(traffic || !empty, wait > 0, transport.isWaitApplied());
+        return responseCode;
+    }
+
+    // Пауза перед следующим step, нс: в простое опрос идет реже, подготовленные пакеты отправляются сразу
+    public long getIdleDelay() {
+        return frames.isEmpty() ? poll.delayNanos() : 0;
+    }
+
+    // Работает в текущем потоке до ответа с кодом, отличным от 200
+    public int run() {
+        while (step() == 200) {
+            long delay = getIdleDelay();
+            if (delay > 0)
+                LockSupport.parkNanos(delay);
+        }
+        return responseCode;
+    }
+
+    private void restore() {
+        if (snapshotPath == null)
+            return;
+        try {
+            snapshot = new RegistrySnapshot(snapshotPath);
+            long start = System.nanoTime();
+            int loaded = dispatcher.restore(snapshot);
+            System.err.println(name + " restored " + loaded + " devices from " + snapshotPath
+                    + " in " + (System.nanoTime() - start) / 1000 + "us");
+        } catch (IOException e) {
+            System.err.println(name + " snapshot " + snapshotPath + " is not available: " + e);
+        }
+    }
+
+    // Закрывает соединение и снимок; метрики сессии остаются только в общей сумме HubMetrics
+    public void close() {
+        transport.close();
+        closeSnapshot();
+        metrics.close();
+    }
+
+    private void closeSnapshot() {
+        if (snapshot == null)
+            return;
+        try {
+            snapshot.close();
+        } catch (IOException e) {
+            // снимок уже сохранен при последнем изменении
+        }
+        snapshot = null;
+    }
+
+    // GETSTATUS и SETSTATUS других устройств хабу не нужны и сразу возвращаются декодеру.
+    private void dispatch(PayloadView payload) {
+        if (payload.getCmd() != 6)
+            traffic = true;
+        if (payload.isRequest()) {
+            payload.release();
+        } else if (sharded != null) {
+            sharded.handle(payload);
+        } else {
+            dispatcher.handle(payload, frames);
+            payload.release();
+        }
+    }
+
+    public boolean isFinished() {
+        return responseCode != 200;
+    }
+
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public HubDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public HubTransport getTransport() {
+        return transport;
+    }
+
+    public PollScheduler getPoll() {
+        return poll;
+    }
+
+    public HubMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return "HubSession{" + name +
+                ", responseCode=" + responseCode +
+                ", devices=" + (sharded != null ? sharded.getDevices() : dispatcher.getDevices()).size() +
+                (sharded != null ? ", " + sharded : "") +
+                ", " + poll +
+                ", " + transport +
+                ", " + metrics +
+                '}';
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Много хабов в одном процессе на общем пуле потоков.
+// Каждый шаг сессии (обмен с сервером и обработка ответа) - отдельная задача пула; после шага сессия встает
+// в конец общей очереди, поэтому потоки по очереди обслуживают все сессии, а поток занят сессией только на время обмена.
+// Сессия в простое встает в очередь с паузой getIdleDelay и не занимает поток, пока ждет.
+// Долгий опрос держит поток на все время ожидания, поэтому он включен, только если потоков хватает на все сессии.
+// Число потоков задается свойством hub.threads (по умолчанию вдвое больше числа процессоров).
+public class HubSessions {
+    private final List<HubSession> sessions = new ArrayList<>();
+    private final int threads;
+
+    public HubSessions() {
+        this(Integer.getInteger("hub.threads", Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    public HubSessions(int threads) {
+        this.threads = threads;
+    }
+
+    public HubSession add(HubSession session) {
+        sessions.add(session);
+        return session;
+    }
+
+    // Выполняет все сессии до завершения. Возвращает число сессий, завершившихся кодом 204.
+    public int run() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(sessions.size());
+        AtomicInteger finished = new AtomicInteger();
+        AtomicInteger workers = new AtomicInteger();
+        ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(threads, task -> {
+            Thread thread = new Thread(task, "hub-io-" + workers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (HubSession session : sessions) {
+                if (sessions.size() > threads)
+                    session.getPoll().disableLongPoll();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        int code;
+                        try {
+                            code = session.step();
+                        } catch (RuntimeException e) {
+                            // ошибка одного хаба не останавливает остальные
+                            System.err.println(session.getName() + " " + e);
+                            session.close();
+                            code = -1;
+                        }
+                        if (code == 200) {
+                            long delay = session.getIdleDelay();
+                            if (delay > 0)
+                                executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+                            else
+                                executor.execute(this);
+                            return;
+                        }
+                        if (code == 204)
+                            finished.incrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        return finished.get();
+    }
+
+    public List<HubSession> getSessions() {
+        return sessions;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+}
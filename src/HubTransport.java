@@ -0,0 +1,353 @@
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+// HTTP/1.1 клиент хаба с одним постоянным (keep-alive) соединением до сервера.
+// Буферы запроса и ответа создаются один раз, тело ответа сразу передается в FrameDecoder.
+// Если сервер закрыл простаивающее соединение, оно открывается заново, а запрос повторяется один раз - но только
+// если от сервера еще не получено ни одного байта ответа: закрытое соединение обнаруживается при чтении ответа.
+// HTTPS-соединение проверяет имя сервера по сертификату (SNI и endpoint identification, как HttpURLConnection).
+// Пустой опрос может просить сервер подождать пакетов (Prefer: wait=N, RFC 7240); сервер, который держит
+// такой запрос, отвечает с заголовком Preference-Applied.
+public class HubTransport implements Closeable {
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String host;
+    private final int port;
+    private final boolean secure;
+    private final String head;
+    private final byte[] requestHead;
+    // Заголовки запроса с Prefer: wait=waitHeadSeconds
+    private byte[] waitHead;
+    private int waitHeadSeconds;
+    // Prefer: wait текущего запроса и ответ сервера на него
+    private int wait;
+    private boolean waitApplied;
+    private final byte[] lengthDigits = new byte[20];
+    private final byte[] line = new byte[1024];
+    private final byte[] body = new byte[BUFFER_SIZE];
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final BodyConsumer feedDecoder = this::decode;
+    private Consumer<PayloadView> sink;
+    private HubMetrics metrics = HubMetrics.DEFAULT;
+    // Получен хотя бы один байт ответа на текущий запрос
+    private boolean received;
+
+    private Socket socket;
+    private BufferedInputStream in;
+    private BufferedOutputStream out;
+
+    // Статистика соединений
+    private long requests;
+    private long connectionsOpened;
+    private long reusedRequests;
+
+    public HubTransport(URL url) {
+        this.host = url.getHost();
+        this.secure = "https".equalsIgnoreCase(url.getProtocol());
+        this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        this.head = "POST " + path + " HTTP/1.1\r\n" +
+                "Host: " + host + (url.getPort() != -1 ? ":" + port : "") + "\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Connection: keep-alive\r\n";
+        this.requestHead = (head + "Content-Length: ").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Получатель тела ответа. Массив data переиспользуется и действителен только во время вызова.
+    public interface BodyConsumer {
+        void accept(byte[] data, int offset, int length);
+    }
+
+    // Отправляет строку request. Пакеты из ответа с кодом 200 передаются в sink по мере чтения.
+    // Представления принадлежат декодеру транспорта: получатель вызывает release после обработки.
+    public int post(String request, Consumer<PayloadView> sink) throws IOException {
+        return postDecoded(request, null, sink);
+    }
+
+    // Пустой опрос. Если waitSeconds > 0, сервер может держать запрос до появления пакетов, но не дольше waitSeconds;
+    // принял ли он это, показывает isWaitApplied.
+    public int poll(int waitSeconds, Consumer<PayloadView> sink) throws IOException {
+        wait = waitSeconds;
+        try {
+            return postDecoded(" ", null, sink);
+        } finally {
+            wait = 0;
+        }
+    }
+
+    // Отправляет пакеты из frames, кодируя их прямо в поток запроса.
+    public int post(FrameEncoder frames, Consumer<PayloadView> sink) throws IOException {
+        return postDecoded(null, frames, sink);
+    }
+
+    // Отправляет запрос и передает тело ответа с кодом 200 в body без декодирования.
+    public int post(String request, BodyConsumer body) throws IOException {
+        return post(request, null, body);
+    }
+
+    public int post(FrameEncoder frames, BodyConsumer body) throws IOException {
+        return post(null, frames, body);
+    }
+
+    private int postDecoded(String request, FrameEncoder frames, Consumer<PayloadView> sink) throws IOException {
+        this.sink = sink;
+        try {
+            return post(request, frames, feedDecoder);
+        } finally {
+            decoder.finish();
+            this.sink = null;
+        }
+    }
+
+    private void decode(byte[] data, int offset, int length) {
+        decoder.feedViews(data, offset, length, sink);
+    }
+
+    private int post(String request, FrameEncoder frames, BodyConsumer body) throws IOException {
+        requests++;
+        long start = System.nanoTime();
+        for (int attempt = 0; ; attempt++) {
+            boolean wasReused = ensureConnected();
+            int responseCode;
+            received = false;
+            try {
+                writeRequest(request, frames);
+                responseCode = readStatusLine();
+            } catch (IOException e) {
+                // Сервер мог закрыть простаивающее соединение, не начав отвечать, - повторяем на новом
+                closeSocket();
+                if (wasReused && attempt == 0 && !received)
+                    continue;
+                throw e;
+            }
+            if (wasReused)
+                reusedRequests++;
+            readResponse(responseCode, body);
+            if (waitApplied)
+                metrics.longPolls.increment();
+            metrics.recordExchange(frames == null, start, System.nanoTime(), frames == null ? 0 : frames.getCauseNanos());
+            return responseCode;
+        }
+    }
+
+    // Журнал пакетов, прочитанных из ответов
+    public void setJournal(FrameJournal.Appender journal) {
+        decoder.setJournal(journal);
+    }
+
+    // Метрики сессии, которой принадлежит соединение
+    public void setMetrics(HubMetrics metrics) {
+        this.metrics = metrics;
+        decoder.setMetrics(metrics);
+    }
+
+    // Сервер держал последний опрос до появления пакетов
+    public boolean isWaitApplied() {
+        return waitApplied;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened;
+    }
+
+    public long getReusedRequests() {
+        return reusedRequests;
+    }
+
+    @Override
+    public String toString() {
+        return "HubTransport{" +
+                "requests=" + requests +
+                ", connectionsOpened=" + connectionsOpened +
+                ", reusedRequests=" + reusedRequests +
+                '}';
+    }
+
+    @Override
+    public void close() {
+        closeSocket();
+    }
+
+    // Возвращает true, если используется уже открытое соединение.
+    private boolean ensureConnected() throws IOException {
+        if (socket != null && !socket.isClosed())
+            return true;
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        if (secure) {
+            // createSocket с именем хоста отправляет SNI; сертификат проверяется на соответствие этому имени
+            try {
+                SSLSocket tls = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, host, port, true);
+                SSLParameters parameters = tls.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                tls.setSSLParameters(parameters);
+                tls.startHandshake();
+                socket = tls;
+            } catch (IOException e) {
+                closeSocket();
+                throw e;
+            }
+        }
+        in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        connectionsOpened++;
+        return false;
+    }
+
+    private void closeSocket() {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // соединение уже неработоспособно
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    private void writeRequest(String request, FrameEncoder frames) throws IOException {
+        int length = frames != null ? frames.encodedLength() : request.length();
+        out.write(wait > 0 ? waitHead(wait) : requestHead);
+        int digits = 0;
+        do {
+            lengthDigits[lengthDigits.length - ++digits] = (byte) ('0' + length % 10);
+            length /= 10;
+        } while (length != 0);
+        out.write(lengthDigits, lengthDigits.length - digits, digits);
+        out.write('\r');
+        out.write('\n');
+        out.write('\r');
+        out.write('\n');
+        if (frames != null)
+            frames.writeTo(out);
+        else
+            for (int i = 0; i < request.length(); i++)
+                out.write(request.charAt(i));
+        out.flush();
+    }
+
+    private byte[] waitHead(int seconds) {
+        if (waitHead == null || waitHeadSeconds != seconds) {
+            waitHead = (head + "Prefer: wait=" + seconds + "\r\nContent-Length: ").getBytes(StandardCharsets.US_ASCII);
+            waitHeadSeconds = seconds;
+        }
+        return waitHead;
+    }
+
+    private int readStatusLine() throws IOException {
+        int length = readLine();
+        if (length < 12)
+            throw new EOFException("Malformed status line");
+        // HTTP/1.1 200 OK
+        return (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+    }
+
+    private void readResponse(int responseCode, BodyConsumer body) throws IOException {
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean close = false;
+        waitApplied = false;
+        int length;
+        while ((length = readLine()) > 0) {
+            if (headerIs("content-length", length))
+                contentLength = Long.parseLong(headerValue(length));
+            else if (headerIs("transfer-encoding", length))
+                chunked = headerValue(length).equalsIgnoreCase("chunked");
+            else if (headerIs("connection", length))
+                close = headerValue(length).equalsIgnoreCase("close");
+            else if (headerIs("preference-applied", length))
+                waitApplied = wait > 0 && headerValue(length).startsWith("wait");
+        }
+
+        BodyConsumer consumer = responseCode == 200 ? body : null;
+        if (responseCode == 204 || responseCode == 304 || responseCode / 100 == 1) {
+            contentLength = 0;
+        }
+        if (chunked) {
+            long chunkLength;
+            while ((chunkLength = Long.parseLong(new String(line, 0, readLine(), StandardCharsets.US_ASCII).split(";")[0].trim(), 16)) > 0) {
+                readBody(chunkLength, consumer);
+                readLine();
+            }
+            // завершающие заголовки
+            while (readLine() > 0) ;
+        } else if (contentLength >= 0) {
+            readBody(contentLength, consumer);
+        } else {
+            readBody(Long.MAX_VALUE, consumer);
+            close = true;
+        }
+        if (close)
+            closeSocket();
+    }
+
+    // Читает length байт тела (или до конца потока) и передает их в consumer, если он задан.
+    private void readBody(long length, BodyConsumer consumer) throws IOException {
+        while (length > 0) {
+            int read = in.read(body, 0, (int) Math.min(body.length, length));
+            if (read == -1) {
+                if (length == Long.MAX_VALUE)
+                    return;
+                throw new EOFException("Unexpected end of response body");
+            }
+            if (consumer != null)
+                consumer.accept(body, 0, read);
+            if (length != Long.MAX_VALUE)
+                length -= read;
+        }
+    }
+
+    // Читает строку заголовка в line без \r\n и возвращает ее длину.
+    private int readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                throw new EOFException("Connection closed by server");
+            received = true;
+            if (b == '\r')
+                continue;
+            if (length == line.length)
+                throw new IOException("Header line is longer than " + line.length + " bytes");
+            line[length++] = (byte) b;
+        }
+        return length;
+    }
+
+    private boolean headerIs(String name, int length) {
+        if (length <= name.length() || line[name.length()] != ':')
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase(line[i]) != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private String headerValue(int length) {
+        int start = line.length;
+        for (int i = 0; i < length; i++) {
+            if (line[i] == ':') {
+                start = i + 1;
+                break;
+            }
+        }
+        return new String(line, start, length - start, StandardCharsets.US_ASCII).trim();
+    }
+}
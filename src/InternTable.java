@@ -0,0 +1,132 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+// Таблица интернирования по сырым байтам: одинаковые последовательности байт дают один и тот же объект.
+// Поиск идет прямо по байтам буфера без создания строк и ключей, объект создается только при первой встрече.
+// Поиск без блокировок, добавление под блокировкой. Размер ограничен maxSize: после заполнения таблицы
+// новые объекты создаются, но не запоминаются, чтобы поток уникальных имен не занимал память без предела.
+public class InternTable<T> {
+    // Создает объект по байтам buffer[offset, offset + length)
+    public interface Factory<T> {
+        T create(ByteBuffer buffer, int offset, int length);
+    }
+
+    private final String name;
+    private final int maxSize;
+    private volatile Entry<T>[] table;
+    private int size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public InternTable(String name, int maxSize) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.table = newTable(64);
+    }
+
+    // Объект для байт buffer[offset, offset + length). Позиция буфера не меняется.
+    public T intern(ByteBuffer buffer, int offset, int length, Factory<T> factory) {
+        int hash = hash(buffer, offset, length);
+        T value = find(table, hash, buffer, offset, length);
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+        return insert(hash, buffer, offset, length, factory);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "InternTable{" + name +
+                ", size=" + size +
+                ", hits=" + hits.sum() +
+                ", misses=" + misses.sum() +
+                '}';
+    }
+
+    private synchronized T insert(int hash, ByteBuffer buffer, int offset, int length, Factory<T> factory) {
+        // Другой поток мог добавить тот же объект
+        T value = find(table, hash, buffer, offset, length);
+        if (value != null)
+            return value;
+        value = factory.create(buffer, offset, length);
+        if (size >= maxSize)
+            return value;
+
+        byte[] key = new byte[length];
+        buffer.get(offset, key);
+        Entry<T>[] current = table;
+        if ((size + 1) * 2 > current.length) {
+            Entry<T>[] grown = newTable(current.length * 2);
+            for (Entry<T> entry : current) {
+                if (entry != null)
+                    put(grown, entry);
+            }
+            current = grown;
+        }
+        put(current, new Entry<>(key, hash, value));
+        size++;
+        // Запись в массив видна читателям не позже публикации таблицы; Entry неизменяем
+        table = current;
+        return value;
+    }
+
+    private static <T> T find(Entry<T>[] table, int hash, ByteBuffer buffer, int offset, int length) {
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Entry<T> entry = table[i];
+            if (entry == null)
+                return null;
+            if (entry.hash == hash && entry.matches(buffer, offset, length))
+                return entry.value;
+        }
+    }
+
+    private static <T> void put(Entry<T>[] table, Entry<T> entry) {
+        int mask = table.length - 1;
+        int i = entry.hash & mask;
+        while (table[i] != null)
+            i = (i + 1) & mask;
+        table[i] = entry;
+    }
+
+    private static int hash(ByteBuffer buffer, int offset, int length) {
+        int hash = length;
+        for (int i = 0; i < length; i++)
+            hash = 31 * hash + buffer.get(offset + i);
+        return hash ^ (hash >>> 16);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Entry<T>[] newTable(int capacity) {
+        return (Entry<T>[]) new Entry[capacity];
+    }
+
+    private static final class Entry<T> {
+        private final byte[] key;
+        private final int hash;
+        private final T value;
+
+        private Entry(byte[] key, int hash, T value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+
+        private boolean matches(ByteBuffer buffer, int offset, int length) {
+            if (key.length != length)
+                return false;
+            for (int i = 0; i < length; i++) {
+                if (key[i] != buffer.get(offset + i))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
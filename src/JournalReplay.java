@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+// Воспроизведение FrameJournal без сети и с максимальной скоростью: полученные пакеты каждой сессии хаба проходят через
+// FrameDecoder и HubDispatcher так же, как в HubSession. Пакеты, которые хаб отправил бы в ответ, сравниваются
+// с записанными в журнал исходящими пакетами, поэтому расхождение логики с записанной работой сразу видно.
+// Хаб, разделенный на части, воспроизводится через ShardedDispatcher с тем же числом частей (запись SESSION).
+// Сессию, начатую с устройствами из снимка (RegistrySnapshot), воспроизвести нельзя: снимка в журнале нет.
+public class JournalReplay {
+    private final FrameDecoder decoder = new FrameDecoder();
+    // Ключ - номер сессии в журнале: у хабов разных серверов может быть один адрес
+    private final Map<Integer, Hub> hubs = new HashMap<>();
+    // Пул частей хабов, создается для первого разделенного хаба
+    private ExecutorService shardExecutor;
+
+    private long inbound;
+    private long outbound;
+    private long matched;
+    private long mismatched;
+    private long nanos;
+
+    public JournalReplay run(Path dir) throws IOException {
+        long start = System.nanoTime();
+        try {
+            FrameJournal.read(dir, this::accept);
+        } finally {
+            if (shardExecutor != null)
+                shardExecutor.shutdown();
+        }
+        nanos = System.nanoTime() - start;
+        return this;
+    }
+
+    private void accept(byte direction, int session, int hubAddress, long tick, ByteBuffer data) throws IOException {
+        // Новая сессия хаба начинается с пустого реестра
+        if (direction == FrameJournal.SESSION) {
+            int shards = data.getInt();
+            int restored = data.getInt();
+            if (restored > 0)
+                throw new IOException("Hub " + Integer.toHexString(hubAddress) + " started with " + restored
+                        + " devices from a snapshot, its journal cannot be replayed");
+            if (shards > 1 && shardExecutor == null)
+                shardExecutor = ShardedDispatcher.newExecutor(shards);
+            hubs.put(session, new Hub(hubAddress, shards, shardExecutor));
+            return;
+        }
+        Hub hub = hubs.computeIfAbsent(session, s -> new Hub(hubAddress, 1, null));
+
+        if (direction == FrameJournal.INBOUND) {
+            inbound++;
+            decoder.feedFramesViews(data, hub::handle);
+            return;
+        }
+        // Исходящий запрос содержит все, что хаб подготовил после предыдущего ответа
+        outbound++;
+        try {
+            hub.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (hub.frames.size() == data.remaining() && ByteBuffer.wrap(hub.frames.getFrames(), 0, hub.frames.size()).equals(data))
+            matched++;
+        else
+            mismatched++;
+        hub.frames.reset();
+    }
+
+    public long getMismatched() {
+        return mismatched;
+    }
+
+    @Override
+    public String toString() {
+        double seconds = nanos / 1e9;
+        return "JournalReplay{inboundFrames=" + inbound +
+                ", outboundRequests=" + outbound +
+                ", matched=" + matched +
+                ", mismatched=" + mismatched +
+                ", ms=" + nanos / 1_000_000 +
+                ", framesPerSecond=" + Math.round(seconds > 0 ? (inbound + outbound) / seconds : 0) +
+                '}';
+    }
+
+    private static final class Hub {
+        private final HubDispatcher dispatcher;
+        private final ShardedDispatcher sharded;
+        private final FrameEncoder frames = new FrameEncoder();
+
+        private Hub(int hubAddress, int shards, ExecutorService shardExecutor) {
+            if (shards > 1) {
+                dispatcher = null;
+                sharded = new ShardedDispatcher(hubAddress, shards, shardExecutor);
+                sharded.startDiscovery(frames, sweep -> {
+                });
+            } else {
+                dispatcher = new HubDispatcher(hubAddress);
+                sharded = null;
+                dispatcher.startDiscovery(frames, sweep -> {
+                });
+            }
+        }
+
+        private void handle(PayloadView payload) {
+            if (payload.isRequest()) {
+                payload.release();
+            } else if (sharded != null) {
+                sharded.handle(payload);
+            } else {
+                dispatcher.handle(payload, frames);
+                payload.release();
+            }
+        }
+
+        // Ответные пакеты частей хаба, как в конце HubSession.step
+        private void finish() throws InterruptedException {
+            if (sharded != null)
+                sharded.finish(frames);
+        }
+    }
+}
@@ -1,30 +1,22 @@
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 public class Main {
-    private static int SERIAL = 1;
+    // serial для методов кодирования без своего хаба; HubDispatcher использует собственный SerialAllocator
+    static final SerialAllocator SERIALS = new SerialAllocator();
     private static final String HUB_NAME = "HUB";
 
-    private static final int BROADCAST_ADDRESS = 16383;
-
-    public static int compute_CRC8_Simple(byte[] bytes) {
-        final int generator = 0x1D;
-        int crc = 0;
-        for (byte b : bytes) {
-            int currByte = b & 0xff;
-            crc ^= currByte;
-            for (int i = 0; i < 8; i++) {
-                if ((crc & 0x80) != 0) {
-                    crc = ((crc << 1) ^ generator) & 0xff;
-                } else {
-                    crc <<= 1;
-                }
-            }
-        }
-        return crc;
-    }
+    static final int BROADCAST_ADDRESS = 16383;
+
+    // Имена и свойства устройств по байтам пакета: повторные WHOISHERE/IAMHERE получают уже созданные объекты.
+    // Свойства общие для всех устройств с одинаковой конфигурацией, поэтому после декодирования они не изменяются.
+    static final InternTable<String> NAMES = new InternTable<>("names", 1 << 16);
+    static final InternTable<EnvSensorProps> ENV_SENSOR_PROPS = new InternTable<>("envSensorProps", 1 << 14);
+    static final InternTable<SwitchProps> SWITCH_PROPS = new InternTable<>("switchProps", 1 << 14);
 
     public static int[] decodeULEB128(int indexFrom, byte[] array) {
         int[] out = new int[2];
@@ -65,7 +57,7 @@ public class Main {
             result |= (long) (array[index] & 127) << shift * 7;
             shift++;
             index++;
-            if (array[index - 1] > 0) // high-order bit of byte == 0;
+            if (array[index - 1] >= 0) // high-order bit of byte == 0;
                 break;
         }
         out[0] = result;
@@ -77,263 +69,252 @@ public class Main {
     public static ArrayList<Payload> decodePackage(String response) {
 
         Base64.Decoder decoder = Base64.getUrlDecoder();
-        byte[] decodedArray = decoder.decode(response);
+        ByteBuffer buffer = ByteBuffer.wrap(decoder.decode(response));
         ArrayList<Payload> payloads = new ArrayList<>();
 
-        int curIndex = 0;
-        while (curIndex < decodedArray.length) {
-            int payloadLength = decodedArray[curIndex++] & 0xff;
-            int crc8;
-
-            try {
-                crc8 = decodedArray[curIndex + payloadLength] & 0xff;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                // Дальнейшее корректное чтение и декодирование пакетов невозможно
-                return payloads;
-            }
+        while (buffer.hasRemaining()) {
+            int payloadLength = buffer.get() & 0xff;
+            int payloadStartIndex = buffer.position();
 
             // Для того чтобы перейти к следующему пакету при появлении ошибки
-            int nextPackageStartIndex = curIndex + payloadLength + 1;
+            int nextPackageStartIndex = payloadStartIndex + payloadLength + 1;
+
+            // Дальнейшее корректное чтение и декодирование пакетов невозможно
+            if (nextPackageStartIndex > buffer.limit())
+                return payloads;
 
-            if (crc8 != compute_CRC8_Simple(Arrays.copyOfRange(decodedArray, curIndex, curIndex + payloadLength))) {
-                curIndex += nextPackageStartIndex;
+            int crc8 = buffer.get(payloadStartIndex + payloadLength) & 0xff;
+            if (crc8 != Crc8.compute(buffer, payloadStartIndex, payloadLength)) {
+                HubMetrics.DEFAULT.crcFailures.increment();
+                buffer.position(nextPackageStartIndex);
                 continue;
             }
 
-            int[] payloadParam = new int[5];
-            int counter = 0;
-
-            while (counter < 5) {
-                int[] numberAndCountBytes = decodeULEB128(curIndex, decodedArray);
-                payloadParam[counter] = numberAndCountBytes[0];
-                curIndex += numberAndCountBytes[1];
-                counter++;
-            }
+            HubMetrics.DEFAULT.framesDecoded.increment();
+            Payload payload = decodePayload(buffer);
+            if (payload != null)
+                payloads.add(payload);
+            buffer.position(nextPackageStartIndex);
+        }
+        return payloads;
+    }
 
-            Payload payload = new Payload(payloadParam[0], payloadParam[1], payloadParam[2], payloadParam[3], payloadParam[4]);
-
-            switch (payload.cmd) {
-                // 0x01 WHOISHERE and 0x02 IAMHERE
-                case 1, 2 -> {
-                    int strLength = decodedArray[curIndex++] & 0xff;
-                    StringBuilder name = new StringBuilder();
-                    for (int i = 0; i < strLength; i++) name.append((char) (decodedArray[curIndex++] & 0xff));
-
-                    switch (payload.devType) {
-                        //0x01 - SmartHub
-                        case 1 -> payload.setCmdBody(new DeviceBody(name.toString(), null));
-
-                        //0x02 - EnvSensor
-                        case 2 -> {
-                            boolean[] sensors = new boolean[4];
-                            int temp = decodedArray[curIndex++] & 0xff;
-                            if ((temp & 1) == 1) sensors[0] = true;
-                            if ((temp & 2) == 2) sensors[1] = true;
-                            if ((temp & 4) == 4) sensors[2] = true;
-                            if ((temp & 8) == 8) sensors[3] = true;
-
-                            int triggersLength = decodedArray[curIndex++] & 0xff;
-                            EnvSensorProps.Trigger[] triggers = new EnvSensorProps.Trigger[triggersLength];
-                            for (int i = 0; i < triggersLength; i++) {
-                                int op = decodedArray[curIndex++] & 0xff;
-
-                                int[] numberAndCountBytes = decodeULEB128(curIndex, decodedArray);
-                                curIndex += numberAndCountBytes[1];
-
-                                StringBuilder deviceName = new StringBuilder();
-                                int nameLength = decodedArray[curIndex++] & 0xff;
-                                for (int j = 0; j < nameLength; j++)
-                                    deviceName.append((char) (decodedArray[curIndex++] & 0xff));
-
-                                triggers[i] = new EnvSensorProps.Trigger((byte) (op & 1), (op & 2) == 2, (op & 3), numberAndCountBytes[0], deviceName.toString());
-                            }
-                            payload.setCmdBody(new DeviceBody(name.toString(), new EnvSensorProps(sensors, triggers)));
-                        }
-                        // 0x03 Switch
-                        case 3 -> {
-                            int stringsLength = decodedArray[curIndex++] & 0xff;
-                            String[] strings = new String[stringsLength];
-                            for (int i = 0; i < stringsLength; i++) {
-                                int nameLength = decodedArray[curIndex++] & 0xff;
-
-                                StringBuilder deviceName = new StringBuilder();
-                                for (int j = 0; j < nameLength; j++)
-                                    deviceName.append((char) (decodedArray[curIndex++] & 0xff));
-
-                                strings[i] = deviceName.toString();
-                            }
-                            payload.setCmdBody(new DeviceBody(name.toString(), new SwitchProps(strings)));
-                        }
-                        // 0x04 Lamp, 0x05 Socket, 0x06 Timer
-                        case 4, 5, 6 -> {
-                            payload.setCmdBody(new DeviceBody(name.toString(), null));
-                        }
-                        default -> {
-
-                        }
+    // Декодирует один пакет, начиная с текущей позиции буфера (сразу после байта длины).
+    // Возвращает null для пакетов, которые хабу не нужны (0x03 - GETSTATUS, 0x05 - SETSTATUS).
+    public static Payload decodePayload(ByteBuffer buffer) {
+        int src = Uleb128.readInt(buffer);
+        int dst = Uleb128.readInt(buffer);
+        int serial = Uleb128.readInt(buffer);
+        int devType = Uleb128.readInt(buffer);
+        int cmd = Uleb128.readInt(buffer);
+        Payload payload = new Payload(src, dst, serial, devType, cmd);
+
+        switch (payload.cmd) {
+            // 0x01 WHOISHERE and 0x02 IAMHERE
+            case 1, 2 -> {
+                String name = readString(buffer);
+
+                switch (payload.devType) {
+                    //0x01 - SmartHub
+                    case 1 -> payload.setCmdBody(new DeviceBody(name, null));
+
+                    //0x02 - EnvSensor
+                    case 2 -> payload.setCmdBody(new DeviceBody(name,
+                            readInterned(buffer, ENV_SENSOR_PROPS, envSensorPropsLength(buffer), Main::decodeEnvSensorProps)));
+
+                    // 0x03 Switch
+                    case 3 -> payload.setCmdBody(new DeviceBody(name,
+                            readInterned(buffer, SWITCH_PROPS, switchPropsLength(buffer), Main::decodeSwitchProps)));
+
+                    // 0x04 Lamp, 0x05 Socket, 0x06 Timer
+                    case 4, 5, 6 -> {
+                        payload.setCmdBody(new DeviceBody(name, null));
                     }
-                }
+                    default -> {
 
-                // STATUS
-                case 4 -> {
-                    switch (payload.devType) {
-                        // 0x02 - EnvSensor
-                        case 2 -> {
-                            int valuesLength = decodedArray[curIndex++] & 0xff;
-                            double[] values = new double[valuesLength];
-                            for (int i = 0; i < valuesLength; i++) {
-                                int[] numberAndCountBytes = decodeULEB128(curIndex, decodedArray);
-                                values[i] = numberAndCountBytes[0];
-                                curIndex += numberAndCountBytes[1];
-                            }
-                            payload.setCmdBody(new EnvSensorStatus(values));
-                        }
-                        // 0x03 - Switch, 0x04 - Lamp, 0x05 - Socket
-                        case 3, 4, 5 -> {
-                            int turnOn = decodedArray[curIndex++] & 0xff;
-                            payload.setCmdBody(new StatusOrSetStatusBody(turnOn == 1));
-                        }
                     }
                 }
+            }
 
-                // 0x03 - GETSTATUS, 0x05 - SETSTATUS
-                case 3, 5 -> {
-                    curIndex = nextPackageStartIndex;
-                    continue;
+            // STATUS
+            case 4 -> {
+                payload.receivedNanos = System.nanoTime();
+                switch (payload.devType) {
+                    // 0x02 - EnvSensor
+                    case 2 -> {
+                        int valuesLength = buffer.get() & 0xff;
+                        double[] values = new double[valuesLength];
+                        for (int i = 0; i < valuesLength; i++)
+                            values[i] = Uleb128.readInt(buffer);
+                        payload.setCmdBody(new EnvSensorStatus(values));
+                    }
+                    // 0x03 - Switch, 0x04 - Lamp, 0x05 - Socket
+                    case 3, 4, 5 -> {
+                        int turnOn = buffer.get() & 0xff;
+                        payload.setCmdBody(new StatusOrSetStatusBody(turnOn == 1));
+                    }
                 }
+            }
 
-                // 0x06 - TICK
-                case 6 -> {
-                    long[] numberAndCountBytes = decodeTimeFromULEB128(curIndex, decodedArray);
-                    long time = numberAndCountBytes[0];
-                    curIndex += numberAndCountBytes[1];
-                    payload.setCmdBody(new TimerCmdBody(time));
-                }
+            // 0x03 - GETSTATUS, 0x05 - SETSTATUS
+            case 3, 5 -> {
+                return null;
             }
-            payloads.add(payload);
-            curIndex++;
+
+            // 0x06 - TICK
+            case 6 -> payload.setCmdBody(new TimerCmdBody(Uleb128.readLong(buffer)));
         }
-        return payloads;
+        return payload;
     }
 
-    // Возвращает последовательность байт, которыми кодируется Payload (за исключением cmdBody).
-    public static ArrayList<Byte> createPayloadHeader(int address, int dstAddress, int devType, Command command) {
-        ArrayList<Byte> byteList = new ArrayList<>();
-        byteList.addAll(encodeULEB128(address));
-        byteList.addAll(encodeULEB128(dstAddress));
-        byteList.addAll(encodeULEB128(SERIAL++));
-        byteList.add((byte) devType);
-        byteList.add((byte) command.ordinal());
-        return byteList;
+    // Читает строку: байт длины и следующие за ним символы.
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.get() & 0xff;
+        return readInterned(buffer, NAMES, length, Main::newString);
     }
 
-    // Вычисляет размер Payload в байтах и записывает в позиции 0. Вычисляет crc8 и записывает в последний байт.
-    public static byte[] createPayload(ArrayList<Byte> byteList) {
-        byte[] byteArray = new byte[byteList.size() + 2];
-        byteArray[0] = (byte) (byteList.size() & 0xff);
-        for (int i = 1; i < byteArray.length - 1; i++)
-            byteArray[i] = byteList.get(i - 1);
-        byteArray[byteArray.length - 1] = (byte) (compute_CRC8_Simple(Arrays.copyOfRange(byteArray, 1, byteArray.length - 1)));
-        return byteArray;
+    // Объект для length байт с текущей позиции из таблицы table; позиция сдвигается за эти байты
+    private static <T> T readInterned(ByteBuffer buffer, InternTable<T> table, int length, InternTable.Factory<T> factory) {
+        int offset = buffer.position();
+        buffer.position(offset + length);
+        return table.intern(buffer, offset, length, factory);
     }
 
-    public static String encodePayloadWhoIsHere(int address, int dstAddress, int devType) {
+    private static String newString(ByteBuffer buffer, int offset, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) (buffer.get(offset + i) & 0xff);
+        return new String(chars);
+    }
 
-        ArrayList<Byte> byteList = createPayloadHeader(address, dstAddress, devType, Command.WHOISHERE);
-        byteList.add((byte) HUB_NAME.length());
-        for (int i = 0; i < HUB_NAME.length(); i++)
-            byteList.add((byte) HUB_NAME.charAt(i));
+    // Длина свойств EnvSensor с текущей позиции: маска датчиков, число триггеров и триггеры (op, значение, имя)
+    private static int envSensorPropsLength(ByteBuffer buffer) {
+        int start = buffer.position();
+        int position = start + 1;
+        int triggersLength = buffer.get(position++) & 0xff;
+        for (int i = 0; i < triggersLength; i++) {
+            position++;
+            while (buffer.get(position++) < 0) ;
+            position += (buffer.get(position) & 0xff) + 1;
+        }
+        return position - start;
+    }
 
-        byte[] byteArray = createPayload(byteList);
-        return Base64.getUrlEncoder().withoutPadding().encodeToString(byteArray);
+    // Длина свойств Switch с текущей позиции: число имен и имена
+    private static int switchPropsLength(ByteBuffer buffer) {
+        int start = buffer.position();
+        int position = start;
+        int stringsLength = buffer.get(position++) & 0xff;
+        for (int i = 0; i < stringsLength; i++)
+            position += (buffer.get(position) & 0xff) + 1;
+        return position - start;
     }
 
-    public static String encodePayloadIAmHere(int address) {
+    private static EnvSensorProps decodeEnvSensorProps(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer in = buffer.duplicate().position(offset);
+        boolean[] sensors = new boolean[4];
+        int temp = in.get() & 0xff;
+        if ((temp & 1) == 1) sensors[0] = true;
+        if ((temp & 2) == 2) sensors[1] = true;
+        if ((temp & 4) == 4) sensors[2] = true;
+        if ((temp & 8) == 8) sensors[3] = true;
+
+        int triggersLength = in.get() & 0xff;
+        EnvSensorProps.Trigger[] triggers = new EnvSensorProps.Trigger[triggersLength];
+        for (int i = 0; i < triggersLength; i++) {
+            int op = in.get() & 0xff;
+            int value = Uleb128.readInt(in);
+            String deviceName = readString(in);
+
+            triggers[i] = new EnvSensorProps.Trigger((byte) (op & 1), (op & 2) == 2, (op >> 2) & 3, value, deviceName);
+        }
+        return new EnvSensorProps(sensors, triggers);
+    }
 
-        ArrayList<Byte> byteList = createPayloadHeader(address, BROADCAST_ADDRESS, 1, Command.IAMHERE);
-        byteList.add((byte) HUB_NAME.length());
-        for (int i = 0; i < HUB_NAME.length(); i++)
-            byteList.add((byte) HUB_NAME.charAt(i));
+    private static SwitchProps decodeSwitchProps(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer in = buffer.duplicate().position(offset);
+        int stringsLength = in.get() & 0xff;
+        String[] strings = new String[stringsLength];
+        for (int i = 0; i < stringsLength; i++)
+            strings[i] = readString(in);
+        return new SwitchProps(strings);
+    }
 
-        byte[] byteArray = createPayload(byteList);
-        return Base64.getUrlEncoder().withoutPadding().encodeToString(byteArray);
+    public static String encodePayloadWhoIsHere(int address, int dstAddress, int devType) {
+        return encodePayloadWhoIsHere(FrameEncoder.get(), address, dstAddress, devType).toBase64();
     }
 
-    public static String encodePayloadGetStatus(int address, int dstAddress, int devType) {
+    public static String encodePayloadIAmHere(int address) {
+        return encodePayloadIAmHere(FrameEncoder.get(), address).toBase64();
+    }
 
-        ArrayList<Byte> byteList = createPayloadHeader(address, dstAddress, devType, Command.GETSTATUS);
-        byte[] byteArray = createPayload(byteList);
-        return Base64.getUrlEncoder().withoutPadding().encodeToString(byteArray);
+    public static String encodePayloadGetStatus(int address, int dstAddress, int devType) {
+        return encodePayloadGetStatus(FrameEncoder.get(), address, dstAddress, devType).toBase64();
     }
 
     public static String encodePayloadSetStatus(int address, int dstAddress, int devType, byte value) {
-        ArrayList<Byte> byteList = createPayloadHeader(address, dstAddress, devType, Command.SETSTATUS);
-        byteList.add(value);
-        byte[] byteArray = createPayload(byteList);
-        return Base64.getUrlEncoder().withoutPadding().encodeToString(byteArray);
+        return encodePayloadSetStatus(FrameEncoder.get(), address, dstAddress, devType, value).toBase64();
     }
 
-    // Отправляет запрос "request" на url, информация полученная от сервера декодируется и сохраняется в список payloads.
-    public static int sendRequest(String request, URL url, ArrayList<Payload> payloads) {
-        int responseCode = 0;
-        boolean isFirstTime = true;
-        long startResponseTime = 0;
-        try {
-            do {
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("POST");
-                connection.setDoOutput(true);
-                connection.setDoInput(true);
-
-                OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream());
-
-                writer.write(request);
-                writer.flush();
-                writer.close();
-
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                String response = reader.readLine();
-                reader.close();
-
-                if (response != null) {
-                    response = response.replace(" ", "");
-                    ArrayList<Payload> input = decodePackage(response);
-
-                    if (isFirstTime)
-                        payloads.addAll(input);
-                    else {
-                        payloads.set(0, input.get(0));
-                        payloads.addAll(input.subList(1, input.size()));
-                    }
-                }
+    // Методы ниже дописывают пакет в frames, не создавая промежуточных списков и строк.
+    public static FrameEncoder encodePayloadWhoIsHere(FrameEncoder frames, int address, int dstAddress, int devType) {
+        return encodePayloadWhoIsHere(frames, SERIALS, address, dstAddress, devType);
+    }
 
-                if (isFirstTime) {
-                    startResponseTime = ((TimerCmdBody) payloads.get(0).getCmdBody()).getTimestamp();
-                    isFirstTime = false;
-                }
-                request = " ";
-                responseCode = connection.getResponseCode();
-            } while (responseCode == 200 && ((TimerCmdBody) payloads.get(0).getCmdBody()).getTimestamp() - startResponseTime < 300);
-        } catch (IOException e) {
-            System.exit(99);
-        }
-        return responseCode;
+    public static FrameEncoder encodePayloadIAmHere(FrameEncoder frames, int address) {
+        return encodePayloadIAmHere(frames, SERIALS, address);
     }
 
-    // Проверяет, есть ли пакет с командой 0x03 - STATUS от устройства с адресом address. Все другие пакет копирует в очередь ответов.
-    public static boolean isRequestAnswered(int address, ArrayList<Payload> payloads, Queue<Payload> responseQueue) {
-        boolean isAnswered = false;
-        for (Payload p : payloads) {
-            // Устройство ответило 0x04 - STATUS
-            if (p.getSrc() == address && p.getCmd() == 4)
-                isAnswered = true;
-            else
-                responseQueue.add(p);
-        }
-        return isAnswered;
+    public static FrameEncoder encodePayloadGetStatus(FrameEncoder frames, int address, int dstAddress, int devType) {
+        return encodePayloadGetStatus(frames, SERIALS, address, dstAddress, devType);
+    }
+
+    public static FrameEncoder encodePayloadSetStatus(FrameEncoder frames, int address, int dstAddress, int devType, byte value) {
+        return encodePayloadSetStatus(frames, SERIALS, address, dstAddress, devType, value);
+    }
+
+    // То же с serial из serials хаба
+    public static FrameEncoder encodePayloadWhoIsHere(FrameEncoder frames, SerialAllocator serials, int address, int dstAddress, int devType) {
+        return frames.beginFrame(address, dstAddress, serials.next(), devType, Command.WHOISHERE.ordinal())
+                .writeString(HUB_NAME)
+                .endFrame();
+    }
+
+    public static FrameEncoder encodePayloadIAmHere(FrameEncoder frames, SerialAllocator serials, int address) {
+        return frames.beginFrame(address, BROADCAST_ADDRESS, serials.next(), 1, Command.IAMHERE.ordinal())
+                .writeString(HUB_NAME)
+                .endFrame();
     }
 
+    public static FrameEncoder encodePayloadGetStatus(FrameEncoder frames, SerialAllocator serials, int address, int dstAddress, int devType) {
+        return frames.beginFrame(address, dstAddress, serials.next(), devType, Command.GETSTATUS.ordinal())
+                .endFrame();
+    }
+
+    public static FrameEncoder encodePayloadSetStatus(FrameEncoder frames, SerialAllocator serials, int address, int dstAddress, int devType, byte value) {
+        return frames.beginFrame(address, dstAddress, serials.next(), devType, Command.SETSTATUS.ordinal())
+                .writeByte(value)
+                .endFrame();
+    }
+
+    // Аргументы: <url> <hub address> [concurrent], несколько пар <url> <hub address> для хабов в одном процессе
+    // или replay <каталог журнала>
     public static void main(String[] args)  {
+        if (args.length < 2)
+            usage();
+
+        // Воспроизведение журнала пакетов без сервера
+        if (args[0].equals("replay")) {
+            try {
+                JournalReplay replay = new JournalReplay().run(Path.of(args[1]));
+                System.err.println(replay);
+                HubMetrics.dump(System.err);
+                System.exit(replay.getMismatched() == 0 ? 0 : 99);
+            } catch (IOException e) {
+                System.err.println(e);
+                System.exit(99);
+            }
+        }
 
         URL url = null;
         try {
@@ -344,177 +325,93 @@ public class Main {
 
         int hubAddress = Integer.parseInt(args[1], 16);
 
-        // Список для приема декодированных пакетов
-        ArrayList<Payload> payloads = new ArrayList<>();
-
-        String request = encodePayloadWhoIsHere(hubAddress, BROADCAST_ADDRESS, 1);
-        int responseCode = sendRequest(request, url, payloads);
-
-        // Ключ - адрес устройства, Значение - конфигурация устройства
-        Map<Integer, Device> devices = new HashMap<>();
-        // Ключ - имя устройства, Значение - адрес устройства
-        Map<String, Integer> addresses = new HashMap<>();
+        HubMetrics.startReporting();
 
-        for (int i = 1; i < payloads.size(); i++) {
-
-            // Все пакеты, кроме 0x02 - IAMHERE игнорируются
-            if (payloads.get(i).getCmd() != 2) {
-                continue;
+        // Конкурентный режим: сеть, декодирование и обработка в отдельных задачах
+        if (args.length > 2 && args[2].equals("concurrent")) {
+            ConcurrentHub hub = new ConcurrentHub(url, hubAddress);
+            int code = 0;
+            try {
+                code = hub.run();
+            } catch (InterruptedException e) {
+                System.exit(99);
             }
-
-            DeviceBody body = (DeviceBody) payloads.get(i).getCmdBody();
-            int address = payloads.get(i).getSrc();
-            int type = payloads.get(i).getDevType();
-            String name = body.getName();
-            devices.put(address, new Device(name, address, type, body.getProps()));
-            addresses.put(name, address);
+            System.err.println(hub.getPollTransport());
+            System.err.println(hub.getSendTransport());
+            System.err.println(hub.getPollScheduler());
+            System.err.println(hub.getInbound());
+            HubMetrics.dump(System.err);
+            System.exit(code == 204 ? 0 : 99);
         }
 
-        payloads.clear();
-
-        // Очередь входящих пакетов
-        Queue<Payload> responseQueue = new LinkedList<>();
-
-        // Запрос исходных состояний всех устройств
-        for (Map.Entry<Integer, Device> d : devices.entrySet()) {
-            request = encodePayloadGetStatus(hubAddress, d.getKey(), d.getValue().getDevType());
-            responseCode = sendRequest(request, url, payloads);
-            responseQueue.addAll(payloads);
-            payloads.clear();
-        }
-
-        while (responseCode == 200) {
-
-            if (responseQueue.isEmpty()) {
-                request = " ";
-                responseCode = sendRequest(request, url, payloads);
-                responseQueue.addAll(payloads);
-                payloads.clear();
-            }
-
-            while (!responseQueue.isEmpty()) {
-                Payload currPayload = responseQueue.poll();
-                switch (currPayload.getCmd()) {
-
-                    // 0x01 - WHOISHERE
-                    case 1 -> {
-                        DeviceBody body = (DeviceBody) currPayload.getCmdBody();
-                        int address = currPayload.getSrc();
-                        int type = currPayload.getDevType();
-                        devices.put(address, new Device(body.getName(), address, type, body.getProps()));
-                        addresses.put(body.getName(), address);
-
-                        // Ответ IAMHERE
-                        String innerRequest = encodePayloadIAmHere(hubAddress);
-                        responseCode = sendRequest(innerRequest, url, payloads);
-                        responseQueue.addAll(payloads);
-                        payloads.clear();
-
-                        // 0x06 - TIMER
-                        if (type == 6) {
-                            continue;
-                        }
-
-                        // Запрос GETSTATUS
-                        innerRequest = encodePayloadGetStatus(hubAddress, address, type);
-                        responseCode = sendRequest(innerRequest, url, payloads);
-
-                        // Проверка пришел ли ответ от устройства
-                        // Устройство удаляется, если оно не ответило за 300мс
-                        if (!isRequestAnswered(address, payloads, responseQueue)) {
-                            devices.remove(address);
-                        }
-                        payloads.clear();
-                    }
-
-                    // 0x04 - STATUS
-                    case 4 -> {
-                        String innerRequest;
-                        int address = currPayload.getSrc();
-                        if (currPayload.getDevType() == 3) { // 0x03 - SWITCH
-                            byte value = ((StatusOrSetStatusBody) currPayload.getCmdBody()).isTurnOn() ? (byte) 1 : (byte) 0;
-                            Device currSwitch = devices.get(address);
-                            if (currSwitch == null)
-                                continue;
-
-                            for (String s : ((SwitchProps) currSwitch.getDevProps()).getDevNames()) {
-                                Integer devAddress = addresses.get(s);
-                                if (devAddress == null)
-                                    continue;
-
-                                Device lampOrSocket = devices.get(devAddress);
-                                innerRequest = encodePayloadSetStatus(hubAddress, lampOrSocket.getAddress(), lampOrSocket.getDevType(), value);
-
-                                // отправить пакет
-                                responseCode = sendRequest(innerRequest, url, payloads);
-
-                                // Проверка пришел ли ответ от устройства
-                                // Устройство удаляется, если оно не ответило за 300мс
-                                if (!isRequestAnswered(devAddress, payloads, responseQueue)) {
-                                    devices.remove(devAddress);
-                                }
-                                payloads.clear();
-
-                            }
-
-                        } else if (currPayload.getDevType() == 2) {
-                            Device envSensor = devices.get(address);
-                            if (envSensor == null)
-                                continue;
-
-                            double[] values = ((EnvSensorStatus) currPayload.getCmdBody()).getValues();
-                            boolean[] sensors = ((EnvSensorProps) envSensor.getDevProps()).getSensors();
-                            EnvSensorProps.Trigger[] triggers = ((EnvSensorProps) envSensor.getDevProps()).getTriggers();
-
-                            int counter = 0;
-                            for (int i = 0; i < sensors.length; i++) {
-                                if (!sensors[i])
-                                    continue;
-
-                                for (EnvSensorProps.Trigger trigger : triggers) {
-                                    Device device = devices.get(addresses.get(trigger.getDeviceName()));
-                                    if (device == null)
-                                        continue;
-                                    if (trigger.getSensor() == i &&
-                                            (!trigger.isMoreOrLess() && values[counter] < trigger.getValue() ||
-                                                    trigger.isMoreOrLess() && values[counter] > trigger.getValue())) {
-
-                                        int devAddress = device.getAddress();
-                                        // включить или выключить
-                                        innerRequest = encodePayloadSetStatus(hubAddress, devAddress, device.getDevType(), trigger.getOnOff());
-
-                                        // отправить пакет
-                                        responseCode = sendRequest(innerRequest, url, payloads);
-
-                                        // Проверка пришел ли ответ от устройства
-                                        // Устройство удаляется, если оно не ответило за 300мс
-                                        if (!isRequestAnswered(devAddress, payloads, responseQueue)) {
-                                            devices.remove(devAddress);
-                                        }
-
-                                        payloads.clear();
-                                    }
-                                }
-                                counter++;
-                            }
-                        }
-                    }
-
-                    // 0x02 - IAMHERE
-                    // 0x03 - GETSTATUS
-                    // 0x05 - SETSTATUS
-                    // 0x06 - TICK
-                    case 2, 3, 5, 6 -> {
-
-                    }
+        // Журнал пакетов, если задан hub.journal.dir
+        FrameJournal journal = null;
+        try {
+            journal = FrameJournal.open();
+        } catch (IOException e) {
+            System.err.println("Journal is not available: " + e);
+        }
+
+        // Части хабов (hub.shards > 1) всех сессий выполняются на одном пуле
+        int shards = Integer.getInteger("hub.shards", 1);
+        ExecutorService shardExecutor = shards > 1 ? ShardedDispatcher.newExecutor(shards) : null;
+
+        // Несколько хабов на общем пуле потоков
+        if (args.length > 2) {
+            if (args.length % 2 != 0)
+                usage();
+            HubSessions hubs = new HubSessions();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                try {
+                    hubs.add(new HubSession(new URL(args[i]), Integer.parseInt(args[i + 1], 16), journal, shardExecutor));
+                } catch (IOException e) {
+                    System.exit(99);
                 }
             }
+            int finished = 0;
+            try {
+                finished = hubs.run();
+            } catch (InterruptedException e) {
+                System.exit(99);
+            }
+            for (HubSession session : hubs.getSessions())
+                System.err.println(session);
+            closeJournal(journal);
+            HubMetrics.dump(System.err);
+            System.exit(finished == hubs.getSessions().size() ? 0 : 99);
         }
 
+        // Один хаб с одним постоянным соединением с сервером в текущем потоке
+        HubSession session = new HubSession(url, hubAddress, journal, shardExecutor);
+        int responseCode = session.run();
+
+        System.err.println(session.getTransport());
+        System.err.println(session.getPoll());
+        closeJournal(journal);
+        HubMetrics.dump(System.err);
+
         if (responseCode == 204)
             System.exit(0);
         else System.exit(99);
     }
+    private static void usage() {
+        System.err.println("Usage: <url> <hub address> [concurrent]");
+        System.err.println("       <url> <hub address> <url> <hub address> ...");
+        System.err.println("       replay <journal dir>");
+        System.exit(99);
+    }
+
+    private static void closeJournal(FrameJournal journal) {
+        if (journal == null)
+            return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Journal is not saved: " + e);
+        }
+        System.err.println(journal);
+    }
+
     enum Command {
         EMPTY,
         WHOISHERE,
@@ -532,6 +429,8 @@ public class Main {
         int devType;
         int cmd;
         CmdBody cmdBody;
+        // Время получения (System.nanoTime) для пакетов STATUS, для метрик
+        long receivedNanos;
 
         public Payload(int src, int dst, int serial, int devType, int cmd) {
             this.src = src;
@@ -557,6 +456,10 @@ public class Main {
             return src;
         }
 
+        public long getReceivedNanos() {
+            return receivedNanos;
+        }
+
         public void setSrc(int src) {
             this.src = src;
         }
@@ -713,32 +616,25 @@ public class Main {
 
     }
 
+    // Свойства интернируются (InternTable) и общие для всех устройств с одинаковым описанием, поэтому неизменяемы
     static class EnvSensorProps extends DevProps {
-        private boolean[] sensors;
-        private Trigger[] triggers;
+        private final boolean[] sensors;
+        private final List<Trigger> triggers;
 
         public boolean[] getSensors() {
-            return sensors;
+            return sensors.clone();
         }
 
-        public void setSensors(boolean[] sensors) {
-            this.sensors = sensors;
-        }
-
-        public Trigger[] getTriggers() {
+        public List<Trigger> getTriggers() {
             return triggers;
         }
 
-        public void setTriggers(Trigger[] triggers) {
-            this.triggers = triggers;
-        }
-
         static class Trigger {
-            private byte onOff;
-            private boolean moreOrLess;
-            private int sensor;
-            private int value;
-            private String deviceName;
+            private final byte onOff;
+            private final boolean moreOrLess;
+            private final int sensor;
+            private final int value;
+            private final String deviceName;
 
             public Trigger(byte onOff, boolean moreOrLess, int sensor, int value, String deviceName) {
                 this.onOff = onOff;
@@ -763,78 +659,54 @@ public class Main {
                 return onOff;
             }
 
-            public void setOnOff(byte onOff) {
-                this.onOff = onOff;
-            }
-
             public boolean isMoreOrLess() {
                 return moreOrLess;
             }
 
-            public void setMoreOrLess(boolean moreOrLess) {
-                this.moreOrLess = moreOrLess;
-            }
-
             public int getSensor() {
                 return sensor;
             }
 
-            public void setSensor(int sensor) {
-                this.sensor = sensor;
-            }
-
             public int getValue() {
                 return value;
             }
 
-            public void setValue(int value) {
-                this.value = value;
-            }
-
             public String getDeviceName() {
                 return deviceName;
             }
-
-            public void setName(String deviceName) {
-                this.deviceName = deviceName;
-            }
         }
 
         public EnvSensorProps(boolean[] sensors, Trigger[] triggers) {
-            this.sensors = sensors;
-            this.triggers = triggers;
+            this.sensors = sensors.clone();
+            this.triggers = List.of(triggers);
         }
 
         @Override
         public String toString() {
             return "EnvSensorProps{" +
                     "sensors=" + Arrays.toString(sensors) +
-                    ", triggers=" + Arrays.toString(triggers) +
+                    ", triggers=" + triggers +
                     '}';
         }
     };
 
     static class SwitchProps extends DevProps {
-        private String[] devNames;
+        private final List<String> devNames;
 
         public SwitchProps(String[] devNames) {
-            this.devNames = devNames;
+            this.devNames = List.of(devNames);
         }
 
         @Override
         public String toString() {
             return "SwitchProps{" +
-                    "devNames=" + Arrays.toString(devNames) +
+                    "devNames=" + devNames +
                     '}';
         }
 
-        public String[] getDevNames() {
+        public List<String> getDevNames() {
             return devNames;
         }
-
-        public void setDevNames(String[] devNames) {
-            this.devNames = devNames;
-        }
     }
 
     static class Device {
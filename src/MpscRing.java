@@ -0,0 +1,155 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Ограниченная очередь на кольцевом массиве для нескольких производителей и одного потребителя без блокировок.
+// Производители занимают позицию CAS по tail и пишут элемент в ячейку; потребитель забирает элементы по порядку
+// и освобождает ячейку до сдвига head, поэтому ячейка, на которую указывает tail, всегда свободна.
+// Узлы на каждый элемент не создаются. Переполнение не блокирует offer, а учитывается в getRejected,
+// put ждет освобождения места (учитывается в getFullWaits).
+public class MpscRing<T> {
+    private static final int SPINS = 128;
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    // Поток потребителя, если он ждет в take
+    private volatile Thread waiting;
+
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder fullWaits = new LongAdder();
+    private final AtomicLong highWater = new AtomicLong();
+
+    public MpscRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("capacity must be a power of two");
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    // Добавляет элемент, если есть место. Вызывается из любого потока.
+    public boolean offer(T item) {
+        if (enqueue(item))
+            return true;
+        rejected.increment();
+        return false;
+    }
+
+    // Добавляет элемент, ожидая освобождения места.
+    public void put(T item) throws InterruptedException {
+        if (enqueue(item))
+            return;
+        fullWaits.increment();
+        int spins = 0;
+        while (!enqueue(item)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (++spins < SPINS)
+                Thread.onSpinWait();
+            else
+                LockSupport.parkNanos(this, 10_000);
+        }
+    }
+
+    private boolean enqueue(T item) {
+        if (item == null)
+            throw new NullPointerException();
+        long t;
+        do {
+            t = tail.get();
+            if (t - head.get() > mask)
+                return false;
+        } while (!tail.compareAndSet(t, t + 1));
+        slots.set((int) t & mask, item);
+        offered.increment();
+
+        long depth = t + 1 - head.get();
+        long max;
+        while (depth > (max = highWater.get()) && !highWater.compareAndSet(max, depth)) {
+            // повтор
+        }
+
+        Thread consumer = waiting;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+        return true;
+    }
+
+    // Забирает следующий элемент или null, если очередь пуста. Только для потока потребителя.
+    public T poll() {
+        long h = head.get();
+        int index = (int) h & mask;
+        T item = slots.get(index);
+        // Позиция может быть занята производителем, но еще не записана - считаем очередь пустой
+        if (item == null)
+            return null;
+        slots.lazySet(index, null);
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    // Ждет следующий элемент. Только для потока потребителя.
+    public T take() throws InterruptedException {
+        T item;
+        int spins = 0;
+        while ((item = poll()) == null) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            waiting = Thread.currentThread();
+            // Производитель мог записать элемент до того, как увидел waiting
+            if ((item = poll()) == null)
+                LockSupport.park(this);
+            waiting = null;
+            if (item != null)
+                return item;
+        }
+        return item;
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long getOffered() {
+        return offered.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getFullWaits() {
+        return fullWaits.sum();
+    }
+
+    public long getHighWater() {
+        return highWater.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MpscRing{capacity=" + capacity() +
+                ", offered=" + getOffered() +
+                ", rejected=" + getRejected() +
+                ", fullWaits=" + getFullWaits() +
+                ", highWater=" + getHighWater() +
+                '}';
+    }
+}
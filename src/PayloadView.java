@@ -0,0 +1,128 @@
+import java.nio.ByteBuffer;
+
+// Легковесное представление пакета поверх его байтов (payload без байта длины и crc8).
+// Заголовок читается при wrap, тело команды - только по запросу через методы доступа, без создания объектов.
+// Полный Main.Payload (строки, DevProps) строится в toPayload только когда он действительно нужен,
+// например для нового устройства из IAMHERE. Представления переиспользуются: после обработки
+// получатель вызывает release, и декодер отдает тот же объект под следующий пакет.
+public class PayloadView {
+    private final MpscRing<PayloadView> pool;
+    private final byte[] data = new byte[256];
+    private final Uleb128.Cursor cursor = new Uleb128.Cursor();
+    private int length;
+
+    private int src;
+    private int dst;
+    private int serial;
+    private int devType;
+    private int cmd;
+    // Смещение тела команды
+    private int body;
+    // Время получения (System.nanoTime), для метрик
+    private long receivedNanos;
+
+    public PayloadView() {
+        this(null);
+    }
+
+    PayloadView(MpscRing<PayloadView> pool) {
+        this.pool = pool;
+    }
+
+    // Копирует пакет и читает его заголовок
+    public PayloadView wrap(byte[] frame, int offset, int length) {
+        System.arraycopy(frame, offset, data, 0, length);
+        this.length = length;
+        cursor.reset(data, 0);
+        src = cursor.readInt();
+        dst = cursor.readInt();
+        serial = cursor.readInt();
+        devType = cursor.readInt();
+        cmd = cursor.readInt();
+        body = cursor.getPosition();
+        receivedNanos = cmd == 4 ? System.nanoTime() : 0;
+        return this;
+    }
+
+    // Возвращает представление в пул декодера
+    public void release() {
+        if (pool != null)
+            pool.offer(this);
+    }
+
+    public int getSrc() {
+        return src;
+    }
+
+    public int getDst() {
+        return dst;
+    }
+
+    public int getSerial() {
+        return serial;
+    }
+
+    public int getDevType() {
+        return devType;
+    }
+
+    public int getCmd() {
+        return cmd;
+    }
+
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    // 0x03 - GETSTATUS и 0x05 - SETSTATUS хабу не нужны
+    public boolean isRequest() {
+        return cmd == 3 || cmd == 5;
+    }
+
+    // 0x06 - TICK: время сервера. Читается без курсора, поэтому один TICK могут читать несколько потоков
+    public long getTimestamp() {
+        long result = 0L;
+        int shift = 0;
+        int position = body;
+        byte b;
+        do {
+            b = data[position++];
+            result |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return result;
+    }
+
+    // 0x04 - STATUS от 0x03 - Switch, 0x04 - Lamp, 0x05 - Socket
+    public boolean isTurnOn() {
+        return data[body] == 1;
+    }
+
+    // 0x04 - STATUS от 0x02 - EnvSensor: записывает показания в values и возвращает их число
+    public int getValues(double[] values) {
+        cursor.reset(data, body);
+        int count = Math.min(cursor.readUnsignedByte(), values.length);
+        for (int i = 0; i < count; i++)
+            values[i] = cursor.readInt();
+        return count;
+    }
+
+    // Полный объект пакета, null для GETSTATUS/SETSTATUS
+    public Main.Payload toPayload() {
+        Main.Payload payload = Main.decodePayload(ByteBuffer.wrap(data, 0, length));
+        if (payload != null)
+            payload.receivedNanos = receivedNanos;
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return "PayloadView{" +
+                "src=" + src +
+                ", dst=" + dst +
+                ", serial=" + serial +
+                ", devType=" + devType +
+                ", cmd=" + cmd +
+                '}';
+    }
+}
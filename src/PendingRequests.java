@@ -0,0 +1,98 @@
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntConsumer;
+
+// Таблица запросов GETSTATUS/SETSTATUS, ожидающих ответа STATUS, по адресам устройств.
+// Срок ответа задается во времени сервера (TICK), поэтому хаб может держать сколько угодно запросов одновременно,
+// не дожидаясь каждого ответа.
+// STATUS несет serial устройства, а не запроса, и ничем не указывает, на какой запрос отвечает. Поэтому любой STATUS
+// от адреса (в том числе отправленный устройством само по себе) закрывает самый ранний ожидающий запрос к нему:
+// таблица следит только за тем, что устройство вообще отвечает, а не за ответом на конкретный запрос.
+public class PendingRequests {
+    // Устройство должно ответить за 300мс
+    public static final long TIMEOUT = 300;
+
+    // Запросы к каждому адресу в порядке отправки
+    private final Map<Integer, ArrayDeque<Request>> byAddress = new HashMap<>();
+    private int size;
+    // Сроки ответов; один TICK завершает все истекшие запросы сразу
+    private final TimerWheel<IntConsumer> deadlines = new TimerWheel<>(10, 256);
+
+    // Регистрирует отправленный запрос. Future завершается serial ответа STATUS или TimeoutException.
+    public CompletableFuture<Integer> register(int address, long deadline) {
+        Request request = new Request(address);
+        byAddress.computeIfAbsent(address, a -> new ArrayDeque<>()).add(request);
+        size++;
+        request.timeout = deadlines.schedule(deadline, request);
+        return request.future;
+    }
+
+    // Сопоставляет пакет 0x04 - STATUS от address с ожидающим запросом. Возвращает true, если пакет был ответом.
+    public boolean complete(int address, int serial) {
+        ArrayDeque<Request> queue = byAddress.get(address);
+        if (queue == null)
+            return false;
+        Request request = queue.poll();
+        if (queue.isEmpty())
+            byAddress.remove(address);
+        if (request == null)
+            return false;
+        size--;
+        request.timeout.cancel();
+        request.future.complete(serial);
+        return true;
+    }
+
+    // Переносит сроки всех ожидающих запросов на base вперед. Запросы, зарегистрированные до первого TICK,
+    // получают срок относительно нуля, а с первым TICK - относительно его времени.
+    public void rebase(long base) {
+        for (ArrayDeque<Request> queue : byAddress.values()) {
+            for (Request request : queue) {
+                if (request.timeout.isPending())
+                    request.timeout.reschedule(base + request.timeout.getDeadline());
+            }
+        }
+    }
+
+    // Завершает все запросы со сроком не позже now. Для каждого адреса без ответа вызывается onTimeout.
+    public int expire(long now, IntConsumer onTimeout) {
+        return deadlines.advance(now, onTimeout);
+    }
+
+    public boolean isPending(int address) {
+        return byAddress.containsKey(address);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void removeFromAddress(Request request) {
+        ArrayDeque<Request> queue = byAddress.get(request.address);
+        if (queue == null)
+            return;
+        queue.remove(request);
+        if (queue.isEmpty())
+            byAddress.remove(request.address);
+    }
+
+    private final class Request implements TimerWheel.Task<IntConsumer> {
+        private final int address;
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+        private TimerWheel.Timeout<IntConsumer> timeout;
+
+        private Request(int address) {
+            this.address = address;
+        }
+
+        // Срок истек без ответа
+        @Override
+        public void run(IntConsumer onTimeout) {
+            size--;
+            removeFromAddress(this);
+            onTimeout.accept(address);
+            future.completeExceptionally(new TimeoutException("Device " + address + " did not answer"));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+// Частота пустых опросов сервера. Пока в ответах нет ничего, кроме TICK, пауза перед следующим пустым опросом
+// растет вдвое от hub.poll.minIdle до hub.poll.maxIdle мс; первый же ответ с пакетами устройств или
+// подготовленные хабом пакеты возвращают опрос к полной частоте.
+// Если сервер поддерживает долгий опрос (заголовок Prefer: wait, RFC 7240), пустой запрос в простое
+// уходит без паузы, и сервер сам держит его до появления пакетов, но не дольше hub.poll.wait секунд.
+// hub.poll.maxIdle=0 отключает паузы, hub.poll.wait=0 - долгий опрос.
+public class PollScheduler {
+    private final long minIdleNanos;
+    private final long maxIdleNanos;
+    private final int waitSeconds;
+
+    // Пауза перед следующим пустым опросом; 0 - сеть активна
+    private long idleNanos;
+    // Поддержка долгого опроса: неизвестна, пока сервер не ответил на запрос с Prefer: wait
+    private boolean longPoll;
+    private boolean longPollKnown;
+
+    private long idleResponses;
+    private long busyResponses;
+    private HubMetrics metrics = HubMetrics.DEFAULT;
+
+    public PollScheduler() {
+        this(Long.getLong("hub.poll.minIdle", 1), Long.getLong("hub.poll.maxIdle", 100), Integer.getInteger("hub.poll.wait", 1));
+    }
+
+    public PollScheduler(long minIdleMillis, long maxIdleMillis, int waitSeconds) {
+        this.minIdleNanos = minIdleMillis * 1_000_000;
+        this.maxIdleNanos = maxIdleMillis * 1_000_000;
+        this.waitSeconds = waitSeconds;
+    }
+
+    // Учитывает ответ сервера. traffic - в ответе были пакеты, кроме TICK;
+    // asked - запрос отправлен с Prefer: wait, waited - сервер его принял (Preference-Applied).
+    public void record(boolean traffic, boolean asked, boolean waited) {
+        if (asked) {
+            longPoll = waited;
+            longPollKnown = true;
+        }
+        if (traffic) {
+            busyResponses++;
+            idleNanos = 0;
+            return;
+        }
+        idleResponses++;
+        idleNanos = idleNanos == 0 ? minIdleNanos : Math.min(idleNanos * 2, maxIdleNanos);
+        if (maxIdleNanos > 0 && !longPoll)
+            metrics.idleDelay.record(idleNanos / 1000);
+    }
+
+    public void setMetrics(HubMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Пауза перед пустым опросом, нс. Запрос с пакетами отправляется сразу.
+    public long delayNanos() {
+        return longPoll || maxIdleNanos <= 0 ? 0 : idleNanos;
+    }
+
+    // Значение Prefer: wait для пустого опроса, 0 - без долгого опроса.
+    // Пока сеть активна, опрос короткий, чтобы не задерживать ответы устройств на отправленные запросы.
+    public int waitSeconds() {
+        if (waitSeconds <= 0 || idleNanos == 0 || longPollKnown && !longPoll)
+            return 0;
+        return waitSeconds;
+    }
+
+    // Отключает долгий опрос, например когда поток, ждущий ответа, нужен другим хабам
+    public void disableLongPoll() {
+        longPoll = false;
+        longPollKnown = true;
+    }
+
+    public boolean isLongPoll() {
+        return longPoll;
+    }
+
+    @Override
+    public String toString() {
+        return "PollScheduler{idleResponses=" + idleResponses +
+                ", busyResponses=" + busyResponses +
+                ", idleMs=" + idleNanos / 1_000_000 +
+                ", longPoll=" + (longPollKnown ? longPoll : "unknown") +
+                '}';
+    }
+}
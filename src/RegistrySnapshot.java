@@ -0,0 +1,182 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+// Снимок реестра устройств и их последних состояний в отображаемом в память файле, для быстрого перезапуска хаба.
+// Устройство хранится как тело его IAMHERE (в той же кодировке, что и в сети) и читается через Main.decodePayload.
+//
+//   заголовок: magic, версия, адрес хаба, число устройств
+//   устройство: состояние (1 байт), длина payload (2 байта), payload
+//
+// Состав устройств меняется редко, и тогда файл переписывается целиком (save): новый снимок пишется во временный файл
+// и заменяет прежний атомарным переименованием, поэтому сбой во время записи оставляет прежний снимок целым.
+// Состояния меняются часто и пишутся прямо в отображенный файл на место (setState), без системных вызовов.
+public class RegistrySnapshot implements Closeable {
+    private static final int MAGIC = 0x53485542; // SHUB
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    // Индекс - адрес устройства, Значение - смещение байта его состояния в файле или 0
+    private final int[] stateOffsets = new int[Main.BROADCAST_ADDRESS + 1];
+
+    public RegistrySnapshot(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Загружает устройства и состояния в devices и states. Возвращает число устройств,
+    // 0 если снимка нет, он поврежден или принадлежит другому хабу.
+    public int load(int hubAddress, DeviceRegistry devices, DeviceStates states) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE)
+            return 0;
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION || mapped.getInt(8) != hubAddress)
+            return 0;
+        int count = mapped.getInt(12);
+        int position = HEADER_SIZE;
+        int loaded = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                byte state = mapped.get(position);
+                int length = mapped.getShort(position + 1) & 0xffff;
+                Main.Payload payload = Main.decodePayload(mapped.slice(position + 3, length));
+                Main.DeviceBody body = (Main.DeviceBody) payload.getCmdBody();
+                int address = payload.getSrc();
+                devices.put(new Main.Device(body.getName(), address, payload.getDevType(), body.getProps()));
+                if (state != DeviceStates.UNKNOWN)
+                    states.set(address, state == 1);
+                stateOffsets[address] = position;
+                position += 3 + length;
+                loaded++;
+            }
+        } catch (RuntimeException e) {
+            // обрезанный или поврежденный снимок: остаются устройства, прочитанные до ошибки
+            System.err.println("Snapshot " + path + " is damaged: " + e);
+        }
+        return loaded;
+    }
+
+    // Переписывает снимок по текущему реестру и состояниям
+    public void save(int hubAddress, DeviceRegistry devices, DeviceStates states) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(1 << 16);
+        int[] offsets = new int[stateOffsets.length];
+        records.position(HEADER_SIZE);
+        int count = 0;
+        for (int address = 0; address < offsets.length; address++) {
+            Main.Device device = devices.get(address);
+            if (device == null)
+                continue;
+            int size = maxSize(device);
+            if (records.remaining() < size)
+                records = ByteBuffer.allocate(Math.max(records.capacity() * 2, records.position() + size)).put(records.flip());
+            offsets[address] = records.position();
+            records.put(states.get(address));
+            int lengthAt = records.position();
+            records.putShort((short) 0);
+            writeDevice(records, device);
+            records.putShort(lengthAt, (short) (records.position() - lengthAt - 2));
+            count++;
+        }
+        records.putInt(0, MAGIC);
+        records.putInt(4, VERSION);
+        records.putInt(8, hubAddress);
+        records.putInt(12, count);
+        records.flip();
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (records.hasRemaining())
+                out.write(records);
+            out.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // setState пишет в новый файл
+        mapped = null;
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        System.arraycopy(offsets, 0, stateOffsets, 0, offsets.length);
+    }
+
+    // Записывает состояние устройства в снимок, если устройство в нем есть
+    public void setState(int address, byte state) {
+        int offset = stateOffsets[address];
+        if (offset != 0 && mapped != null)
+            mapped.put(offset, state);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mapped != null)
+            mapped.force();
+        mapped = null;
+        Arrays.fill(stateOffsets, 0);
+        channel.close();
+    }
+
+    // Тело IAMHERE устройства: заголовок payload, имя и свойства
+    private static void writeDevice(ByteBuffer out, Main.Device device) {
+        Uleb128.write(out, device.getAddress());
+        Uleb128.write(out, Main.BROADCAST_ADDRESS);
+        Uleb128.write(out, 0);
+        Uleb128.write(out, device.getDevType());
+        Uleb128.write(out, Main.Command.IAMHERE.ordinal());
+        writeString(out, device.getName());
+
+        if (device.getDevProps() instanceof Main.EnvSensorProps props) {
+            boolean[] sensors = props.getSensors();
+            int mask = 0;
+            for (int i = 0; i < sensors.length; i++) {
+                if (sensors[i])
+                    mask |= 1 << i;
+            }
+            out.put((byte) mask);
+            List<Main.EnvSensorProps.Trigger> triggers = props.getTriggers();
+            out.put((byte) triggers.size());
+            for (Main.EnvSensorProps.Trigger t : triggers) {
+                // op: бит 0 - включить, бит 1 - больше/меньше, биты 2-3 - номер датчика
+                out.put((byte) (t.getOnOff() | (t.isMoreOrLess() ? 2 : 0) | t.getSensor() << 2));
+                Uleb128.write(out, t.getValue());
+                writeString(out, t.getDeviceName());
+            }
+        } else if (device.getDevProps() instanceof Main.SwitchProps props) {
+            List<String> names = props.getDevNames();
+            out.put((byte) names.size());
+            for (String name : names)
+                writeString(out, name);
+        }
+    }
+
+    // Наибольший размер записи устройства: имена не длиннее 255 символов, списков не больше 255 элементов
+    private static int maxSize(Main.Device device) {
+        int size = 3 + 32 + 256 + 2;
+        if (device.getDevProps() instanceof Main.EnvSensorProps props)
+            size += props.getTriggers().size() * (1 + 5 + 256);
+        else if (device.getDevProps() instanceof Main.SwitchProps props)
+            size += props.getDevNames().size() * 256;
+        return size;
+    }
+
+    private static void writeString(ByteBuffer out, String value) {
+        out.put((byte) value.length());
+        for (int i = 0; i < value.length(); i++)
+            out.put((byte) value.charAt(i));
+    }
+}
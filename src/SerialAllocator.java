@@ -0,0 +1,49 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Номера serial исходящих пакетов одного хаба. next можно вызывать из любого потока.
+// Номера идут по кругу в диапазоне 1..Integer.MAX_VALUE (0 пропускается), поэтому сравнивать их нужно
+// через compare: из двух номеров позже выдан тот, от которого до другого меньше половины круга назад.
+public class SerialAllocator {
+    private static final int MASK = Integer.MAX_VALUE;
+    private static final int HALF = 1 << 30;
+
+    private final AtomicInteger counter;
+
+    public SerialAllocator() {
+        this(1);
+    }
+
+    public SerialAllocator(int first) {
+        this.counter = new AtomicInteger(first);
+    }
+
+    public int next() {
+        int serial;
+        do {
+            serial = counter.getAndIncrement() & MASK;
+        } while (serial == 0);
+        return serial;
+    }
+
+    // Номер, который будет выдан следующим (без учета пропуска 0)
+    public int peek() {
+        return counter.get() & MASK;
+    }
+
+    // Отрицательное число, если a выдан раньше b, 0 если равны, положительное если позже
+    public static int compare(int a, int b) {
+        int diff = (a - b) & MASK;
+        if (diff == 0)
+            return 0;
+        return diff < HALF ? 1 : -1;
+    }
+
+    public static boolean isAfter(int a, int b) {
+        return compare(a, b) > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SerialAllocator{next=" + peek() + '}';
+    }
+}
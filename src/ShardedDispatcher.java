@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Хаб, разделенный на части по адресу устройства (address % shards); части обрабатывают пакеты параллельно на своих потоках.
+// Каждая часть - HubDispatcher со своими состояниями, ожидающими запросами и триггерами своих устройств,
+// поэтому блокировки не нужны. STATUS получает только часть устройства-источника, остальные пакеты
+// (WHOISHERE, IAMHERE, TICK) - все части, у каждой своя копия реестра устройств для поиска по имени.
+//
+// Пакеты одного ответа сервера раздаются частям в handle, а finish обрабатывает их раундами:
+// в раунде каждая часть обрабатывает свои пакеты и сообщения, адресованные ей в прошлом раунде, и складывает
+// сообщения другим частям (SETSTATUS чужому устройству, удаление устройства) в свои исходящие списки.
+// Между раундами части синхронизируются, раунды идут, пока есть сообщения. Порядок обработки не зависит
+// от планирования потоков. Исходящие пакеты частей собираются в один запрос по порядку частей, и только тогда
+// получают serial хаба; поэтому результат воспроизводим. Номера, которые части дают пакетам сами, предварительные:
+// ответы STATUS сопоставляются с ожидающими запросами по адресу устройства, а не по serial.
+//
+// Части всех хабов процесса выполняются на общем пуле (newExecutor), который передает вызывающая сторона.
+public class ShardedDispatcher {
+    private final Shard[] shards;
+    private final ExecutorService executor;
+    // serial исходящих пакетов хаба
+    private final SerialAllocator serials = new SerialAllocator();
+    private final List<Callable<Void>> rounds = new ArrayList<>();
+    // Пакеты текущего ответа; возвращаются декодеру после finish
+    private final List<PayloadView> batch = new ArrayList<>();
+
+    private long roundsRun;
+    private long messages;
+
+    public ShardedDispatcher(int hubAddress, int shardCount, ExecutorService executor) {
+        this.executor = executor;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(new HubDispatcher(hubAddress, new SerialAllocator(), i, shardCount), i);
+            rounds.add(shards[i]);
+        }
+    }
+
+    // Общий пул потоков для частей хабов
+    public static ExecutorService newExecutor(int threads) {
+        AtomicInteger workers = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "hub-shard-" + workers.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Обнаружение устройств во всех частях. WHOISHERE дописывается в frames, итог исходного опроса всех частей - в onSweep.
+    public void startDiscovery(FrameEncoder frames, Consumer<HubDispatcher.Sweep> onSweep) {
+        HubDispatcher.Sweep[] sweeps = new HubDispatcher.Sweep[shards.length];
+        AtomicInteger remaining = new AtomicInteger(shards.length);
+        for (Shard shard : shards) {
+            shard.dispatcher.startDiscovery(shard.frames, sweep -> {
+                sweeps[shard.index] = sweep;
+                if (remaining.decrementAndGet() == 0) {
+                    for (int i = 1; i < sweeps.length; i++)
+                        sweeps[0].add(sweeps[i]);
+                    onSweep.accept(sweeps[0]);
+                }
+            });
+        }
+        collect(frames);
+    }
+
+    // Передает пакет частям; обработка выполняется в finish
+    public void handle(PayloadView payload) {
+        batch.add(payload);
+        if (payload.getCmd() == 4) {
+            shards[shards[0].dispatcher.shardOf(payload.getSrc())].inbox.add(payload);
+        } else {
+            for (Shard shard : shards)
+                shard.inbox.add(payload);
+        }
+    }
+
+    // Обрабатывает переданные пакеты и дописывает ответные пакеты всех частей в frames
+    public void finish(FrameEncoder frames) throws InterruptedException {
+        boolean pending = !batch.isEmpty();
+        while (pending) {
+            for (Future<Void> round : executor.invokeAll(rounds)) {
+                try {
+                    round.get();
+                } catch (ExecutionException e) {
+                    // ошибка в пакете одной части не останавливает хаб
+                    System.err.println("Shard failed: " + e.getCause());
+                }
+            }
+            roundsRun++;
+
+            // Сообщения раунда становятся входящими следующего
+            pending = false;
+            for (Shard target : shards) {
+                for (Shard source : shards) {
+                    List<Object> outbox = source.outbox[target.index];
+                    target.messages.addAll(outbox);
+                    messages += outbox.size();
+                    outbox.clear();
+                }
+                pending |= !target.messages.isEmpty();
+            }
+        }
+
+        collect(frames);
+        for (PayloadView payload : batch)
+            payload.release();
+        batch.clear();
+    }
+
+    // Пакеты частей по порядку частей с serial хаба
+    private void collect(FrameEncoder frames) {
+        for (Shard shard : shards) {
+            frames.append(shard.frames, serials);
+            shard.frames.reset();
+        }
+    }
+
+    public void setMetrics(HubMetrics metrics) {
+        for (Shard shard : shards)
+            shard.dispatcher.setMetrics(metrics);
+    }
+
+    public long getNow() {
+        return shards[0].dispatcher.getNow();
+    }
+
+    public DeviceRegistry getDevices() {
+        return shards[0].dispatcher.getDevices();
+    }
+
+    public int getShards() {
+        return shards.length;
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedDispatcher{shards=" + shards.length +
+                ", rounds=" + roundsRun +
+                ", messages=" + messages +
+                '}';
+    }
+
+    // SETSTATUS устройству этой части от другой части
+    private record SetStatus(int address, int devType, byte value, boolean force, long causeNanos) {
+    }
+
+    // Устройство удалено другой частью
+    private record Removed(int address) {
+    }
+
+    private final class Shard implements Callable<Void>, HubDispatcher.Remote {
+        private final HubDispatcher dispatcher;
+        private final int index;
+        private final FrameEncoder frames = new FrameEncoder();
+        // Пакеты текущего ответа и сообщения прошлого раунда
+        private final List<PayloadView> inbox = new ArrayList<>();
+        private final List<Object> messages = new ArrayList<>();
+        // Индекс - номер части-получателя
+        private final List<Object>[] outbox;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Shard(HubDispatcher dispatcher, int index) {
+            this.dispatcher = dispatcher;
+            this.index = index;
+            this.outbox = new List[shards.length];
+            for (int i = 0; i < outbox.length; i++)
+                outbox[i] = new ArrayList<>();
+            dispatcher.setRemote(this);
+        }
+
+        // Один раунд части
+        @Override
+        public Void call() {
+            for (Object message : messages) {
+                if (message instanceof SetStatus m)
+                    dispatcher.setStatus(m.address(), m.devType(), m.value(), m.force(), m.causeNanos(), frames);
+                else if (message instanceof Removed m)
+                    dispatcher.remove(m.address());
+            }
+            messages.clear();
+            for (PayloadView payload : inbox)
+                dispatcher.handle(payload, frames);
+            inbox.clear();
+            return null;
+        }
+
+        @Override
+        public void setStatus(int shard, int address, int devType, byte value, boolean force, long causeNanos) {
+            outbox[shard].add(new SetStatus(address, devType, value, force, causeNanos));
+        }
+
+        @Override
+        public void removed(int address) {
+            for (int i = 0; i < outbox.length; i++) {
+                if (i != index)
+                    outbox[i].add(new Removed(address));
+            }
+        }
+    }
+}
@@ -1,73 +1,565 @@
-import java.net.Socket;
-import java.net.ServerSocket;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.InputStreamReader;
-import java.io.BufferedReader;
-import java.util.Scanner;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
-public class TestServer {
+// Локальный симулятор сервера умного дома для нагрузочного тестирования хаба.
+// Говорит на настоящем формате пакетов, держит тысячи виртуальных устройств (лампы, розетки,
+// выключатели, датчики и таймер), отвечает на WHOISHERE/GETSTATUS/SETSTATUS, шлет TICK и
+// зашумленные показания датчиков. Все соединения обслуживает один поток на NIO Selector.
+//
+// Время модели сдвигается на tickStep с каждым запросом хаба. После duration мс сервер отвечает 204.
+// Долгий опрос: пустой запрос с заголовком Prefer: wait=N, на который нечего ответить, кроме TICK, сервер держит.
+// Пока запрос ждет, время модели сдвигается на tickStep каждые idleTickMillis мс реального времени, как если бы
+// хаб опрашивал сервер; ответ уходит с первыми событиями устройств или через N секунд. Время идет само, только пока
+// ждут все подключенные хабы: иначе оно уходило бы вперед, пока другой хаб готовит запрос, и сроки ответов истекали бы.
+//
+// Запуск: TestServer [port] [lamps] [sockets] [switches] [sensors] [duration] [idleTickMillis]
+public class TestServer implements Runnable {
+    private static final int BROADCAST_ADDRESS = 16383;
+    // Адреса устройств начинаются с 2 (первое - таймер) и не доходят до BROADCAST_ADDRESS
+    private static final int FIRST_ADDRESS = 2;
+    public static final int MAX_DEVICES = BROADCAST_ADDRESS - FIRST_ADDRESS;
+    private static final int SENSOR = 2, SWITCH = 3, LAMP = 4, SOCKET = 5, CLOCK = 6;
+    private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
 
+    private final Config config;
+    private final Random random;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final FrameEncoder out = new FrameEncoder();
+    private final Uleb128.Cursor cursor = new Uleb128.Cursor();
 
-    public static void main(String[] args) throws Throwable {
-        ServerSocket ss = new ServerSocket(8080);
-        while (true) {
-            Socket s = ss.accept();
-            System.err.println("Client accepted");
-            new Thread(new SocketProcessor(s)).start();
+    // Виртуальные устройства, индекс - адрес
+    private final VirtualDevice[] devices = new VirtualDevice[BROADCAST_ADDRESS];
+    private final List<VirtualDevice> all = new ArrayList<>();
+    private final VirtualDevice clock;
+    // Соединения с удерживаемым запросом
+    private final List<Connection> held = new ArrayList<>();
+    private long nextIdleTick;
+    private int connections;
+
+    private long time;
+    private int serial = 1;
+    private long requests;
+    private long heldRequests;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws IOException {
+        Config config = new Config();
+        if (args.length > 0) config.port = Integer.parseInt(args[0]);
+        if (args.length > 1) config.lamps = Integer.parseInt(args[1]);
+        if (args.length > 2) config.sockets = Integer.parseInt(args[2]);
+        if (args.length > 3) config.switches = Integer.parseInt(args[3]);
+        if (args.length > 4) config.sensors = Integer.parseInt(args[4]);
+        if (args.length > 5) config.duration = Long.parseLong(args[5]);
+        if (args.length > 6) config.idleTickMillis = Long.parseLong(args[6]);
+        try {
+            config.validate();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
         }
+
+        TestServer testServer = new TestServer(config);
+        System.err.println("Listening on port " + testServer.getPort() + ", devices: " + testServer.all.size());
+        testServer.run();
+        System.err.println("Finished after " + testServer.requests + " requests, " + testServer.heldRequests + " held");
     }
 
-    private static class SocketProcessor implements Runnable {
-        private Socket s;
-        private InputStream is;
-        private OutputStream os;
+    public TestServer(Config config) throws IOException {
+        config.validate();
+        this.config = config;
+        this.random = new Random(config.seed);
+        this.time = config.startTime;
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", config.port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
 
-        private SocketProcessor(Socket s) throws Throwable {
-            this.s = s;
-            this.is = s.getInputStream();
-            this.os = s.getOutputStream();
+        int address = FIRST_ADDRESS;
+        clock = add(new VirtualDevice(address++, CLOCK, "CLOCK01"));
+        List<String> controlled = new ArrayList<>();
+        for (int i = 0; i < config.lamps; i++) {
+            VirtualDevice lamp = add(new VirtualDevice(address++, LAMP, String.format("LAMP%04d", i)));
+            controlled.add(lamp.name);
         }
+        for (int i = 0; i < config.sockets; i++) {
+            VirtualDevice socket = add(new VirtualDevice(address++, SOCKET, String.format("SOCKET%04d", i)));
+            controlled.add(socket.name);
+        }
+        for (int i = 0; i < config.switches; i++) {
+            VirtualDevice sw = add(new VirtualDevice(address++, SWITCH, String.format("SWITCH%04d", i)));
+            sw.targets = pick(controlled, config.namesPerDevice);
+        }
+        for (int i = 0; i < config.sensors; i++) {
+            VirtualDevice sensor = add(new VirtualDevice(address++, SENSOR, String.format("SENSOR%04d", i)));
+            sensor.sensorMask = 1 + random.nextInt(15);
+            sensor.targets = pick(controlled, config.namesPerDevice);
+            sensor.triggerOps = new int[sensor.targets.length];
+            sensor.triggerValues = new int[sensor.targets.length];
+            for (int t = 0; t < sensor.targets.length; t++) {
+                sensor.triggerOps[t] = random.nextInt(16);
+                sensor.triggerValues[t] = random.nextInt(100);
+            }
+        }
+    }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) server.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Запускает сервер в отдельном потоке, чтобы гонять хаб в том же процессе
+    public Thread start() {
+        Thread thread = new Thread(this, "test-server");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getHeldRequests() {
+        return heldRequests;
+    }
 
-        public void run() {
-            Scanner sc = new Scanner(System.in);
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(held.isEmpty() ? 100 : Math.max(1, config.idleTickMillis));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else if (key.isReadable())
+                        read(key);
+                    else if (key.isWritable())
+                        write(key);
+                }
+                tickHeld();
+            }
+        } catch (IOException e) {
+            System.err.println("Test server stopped: " + e);
+        } finally {
             try {
-                readInputHeaders();
-                String inputRequest = sc.nextLine();
-                writeResponse(inputRequest);
-            } catch (Throwable t) {
-                /*do nothing*/
-            } finally {
+                selector.close();
+                server.close();
+            } catch (IOException e) {
+                // сервер уже остановлен
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        connections++;
+        Connection connection = new Connection();
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        int read;
+        try {
+            read = channel.read(connection.ensureInput());
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read == -1) {
+            connections--;
+            key.cancel();
+            channel.close();
+            return;
+        }
+
+        // В буфере может оказаться несколько запросов подряд; следующие запросы ждут ответа на удерживаемый
+        while (connection.heldUntil == 0 && nextRequest(connection)) ;
+        write(key);
+    }
+
+    // Сдвигает время модели для удерживаемых запросов и отвечает на те, для которых появились события или истек срок
+    private void tickHeld() throws IOException {
+        if (held.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        if (now < nextIdleTick)
+            return;
+        nextIdleTick = now + config.idleTickMillis;
+        boolean active = held.size() < connections;
+
+        List<Connection> released = new ArrayList<>();
+        for (Iterator<Connection> iterator = held.iterator(); iterator.hasNext(); ) {
+            Connection connection = iterator.next();
+            if (!connection.key.isValid()) {
+                iterator.remove();
+                continue;
+            }
+            if (active && now < connection.heldUntil)
+                continue;
+            ByteBuffer response;
+            if (!tick()) {
+                response = httpResponse(204, null, 0, 0);
+            } else {
+                int tickOnly = out.size();
+                emitEvents();
+                if (out.size() == tickOnly && now < connection.heldUntil)
+                    continue;
+                response = httpResponse(200, out.toBase64().getBytes(StandardCharsets.US_ASCII), out.encodedLength(), connection.wait);
+            }
+            iterator.remove();
+            connection.heldUntil = 0;
+            connection.output.add(response);
+            released.add(connection);
+        }
+        for (Connection connection : released) {
+            while (connection.heldUntil == 0 && nextRequest(connection)) ;
+            write(connection.key);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (!connection.output.isEmpty()) {
+            ByteBuffer buffer = connection.output.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining())
+                break;
+            connection.output.poll();
+        }
+        key.interestOps(connection.output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+    }
+
+    // Разбирает один полный HTTP запрос из буфера соединения и добавляет ответ в очередь соединения или удерживает запрос.
+    // Возвращает false, если запрос еще не дочитан.
+    private boolean nextRequest(Connection connection) {
+        ByteBuffer input = connection.input;
+        int headersEnd = indexOf(input, HEADERS_END);
+        if (headersEnd < 0)
+            return false;
+        String headers = new String(input.array(), 0, headersEnd, StandardCharsets.US_ASCII);
+        int contentLength = 0;
+        int wait = 0;
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+                continue;
+            String name = line.substring(0, colon).trim();
+            if (name.equalsIgnoreCase("content-length"))
+                contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+            else if (name.equalsIgnoreCase("prefer") && config.idleTickMillis > 0)
+                wait = preferredWait(line.substring(colon + 1));
+        }
+        int bodyStart = headersEnd + HEADERS_END.length;
+        if (input.position() < bodyStart + contentLength)
+            return false;
+
+        byte[] body = Arrays.copyOfRange(input.array(), bodyStart, bodyStart + contentLength);
+        // Остаток буфера - начало следующего запроса
+        int consumed = bodyStart + contentLength;
+        System.arraycopy(input.array(), consumed, input.array(), 0, input.position() - consumed);
+        input.position(input.position() - consumed);
+
+        ByteBuffer response = handle(body, wait);
+        if (response != null) {
+            connection.output.add(response);
+        } else {
+            connection.heldUntil = System.currentTimeMillis() + wait * 1000L;
+            connection.wait = wait;
+            held.add(connection);
+            heldRequests++;
+        }
+        return true;
+    }
+
+    // Секунды из Prefer: wait=N, 0 если ожидание не запрошено
+    private static int preferredWait(String value) {
+        for (String preference : value.split("[,;]")) {
+            preference = preference.trim();
+            if (preference.regionMatches(true, 0, "wait=", 0, 5)) {
                 try {
-                    s.close();
-                } catch (Throwable t) {
-                    /*do nothing*/
+                    return Math.max(0, Integer.parseInt(preference.substring(5).trim()));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    // Обрабатывает тело запроса хаба и формирует ответ с пакетами устройств.
+    // Возвращает null, если запрос с wait > 0 нужно удерживать: ответить пока нечем, кроме TICK.
+    private ByteBuffer handle(byte[] body, int wait) {
+        requests++;
+        if (!tick())
+            return httpResponse(204, null, 0, 0);
+
+        int tickOnly = out.size();
+        receive(body);
+        emitEvents();
+        if (wait > 0 && out.size() == tickOnly)
+            return null;
+        return httpResponse(200, out.toBase64().getBytes(StandardCharsets.US_ASCII), out.encodedLength(), wait);
+    }
+
+    // Сдвигает время модели и начинает ответ с TICK. Возвращает false, если симуляция закончена.
+    private boolean tick() {
+        time += config.tickStep;
+        if (time > config.startTime + config.duration) {
+            // Симуляция закончена, после ответа сервер останавливается
+            running = false;
+            return false;
+        }
+        out.reset();
+        clock.frame(this, BROADCAST_ADDRESS, 6);
+        out.writeUleb128(time).endFrame();
+        return true;
+    }
+
+    // Разбирает пакеты хаба и отвечает от имени устройств
+    private void receive(byte[] body) {
+        int length = 0;
+        for (byte b : body) {
+            if (b != ' ' && b != '\r' && b != '\n')
+                body[length++] = b;
+        }
+        if (length == 0)
+            return;
+        byte[] frames;
+        try {
+            frames = Base64.getUrlDecoder().decode(Arrays.copyOf(body, length));
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        int index = 0;
+        while (index < frames.length) {
+            int payloadLength = frames[index] & 0xff;
+            int start = index + 1;
+            index = start + payloadLength + 1;
+            if (index > frames.length || (frames[start + payloadLength] & 0xff) != Crc8.compute(frames, start, payloadLength))
+                continue;
+
+            cursor.reset(frames, start);
+            int src = cursor.readInt();
+            int dst = cursor.readInt();
+            cursor.readInt();
+            cursor.readUnsignedByte();
+            int cmd = cursor.readUnsignedByte();
+
+            switch (cmd) {
+                // 0x01 - WHOISHERE: отвечают все устройства
+                case 1 -> {
+                    for (VirtualDevice device : all)
+                        device.iAmHere(this, BROADCAST_ADDRESS);
+                }
+                // 0x03 - GETSTATUS
+                case 3 -> {
+                    VirtualDevice device = dst < devices.length ? devices[dst] : null;
+                    if (device != null && device.type != CLOCK)
+                        device.status(this, src);
                 }
+                // 0x05 - SETSTATUS
+                case 5 -> {
+                    VirtualDevice device = dst < devices.length ? devices[dst] : null;
+                    if (device != null && (device.type == LAMP || device.type == SOCKET)) {
+                        device.on = cursor.readUnsignedByte() == 1;
+                        device.status(this, src);
+                    }
+                }
+            }
+        }
+    }
+
+    // Случайные нажатия выключателей и показания датчиков с шумом
+    private void emitEvents() {
+        for (VirtualDevice device : all) {
+            if (device.type == SWITCH && random.nextDouble() < config.switchRate) {
+                device.on = !device.on;
+                device.status(this, BROADCAST_ADDRESS);
+            } else if (device.type == SENSOR && random.nextDouble() < config.sensorRate) {
+                device.status(this, BROADCAST_ADDRESS);
             }
-            System.err.println("Client processing finished");
-        }
-
-        private void writeResponse(String s) throws Throwable {
-            String response = "HTTP/1.1 200 OK\r\n" +
-                    "Server: YarServer/2009-09-09\r\n" +
-                    "Content-Type: text/html\r\n" +
-                    "Content-Length: " + s.length() + "\r\n" +
-                    "Connection: close\r\n\r\n";
-            String result = response + s;
-            os.write(result.getBytes());
-            os.flush();
-        }
-
-        private void readInputHeaders() throws Throwable {
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            String s;
-            while(true) {
-                s = br.readLine();
-                if(s == null || s.trim().length() == 0) {
-                    break;
+        }
+    }
+
+    // wait > 0 - запрос просил долгий опрос, сервер подтверждает это заголовком Preference-Applied
+    private ByteBuffer httpResponse(int code, byte[] body, int length, int wait) {
+        String head = "HTTP/1.1 " + code + (code == 200 ? " OK" : " No Content") + "\r\n" +
+                "Server: SmartHomeTestServer\r\n" +
+                (wait > 0 ? "Preference-Applied: wait=" + wait + "\r\n" : "") +
+                "Content-Type: text/plain\r\n" +
+                "Content-Length: " + length + "\r\n" +
+                "Connection: keep-alive\r\n\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + length);
+        buffer.put(headBytes);
+        if (body != null)
+            buffer.put(body, 0, length);
+        return buffer.flip();
+    }
+
+    private VirtualDevice add(VirtualDevice device) {
+        devices[device.address] = device;
+        all.add(device);
+        return device;
+    }
+
+    private String[] pick(List<String> names, int count) {
+        int size = Math.min(count, names.size());
+        String[] picked = new String[size];
+        for (int i = 0; i < size; i++)
+            picked[i] = names.get(random.nextInt(names.size()));
+        return picked;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+        byte[] array = buffer.array();
+        outer:
+        for (int i = 0; i <= buffer.position() - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (array[i + j] != pattern[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    // Параметры симуляции
+    public static class Config {
+        public int port = 8080;
+        public int lamps = 1000;
+        public int sockets = 500;
+        public int switches = 200;
+        public int sensors = 200;
+        // Имен в SwitchProps и триггеров в EnvSensorProps на одно устройство
+        public int namesPerDevice = 8;
+        public long startTime = 1_688_984_021_000L;
+        public long duration = 60_000;
+        public long tickStep = 100;
+        // Вероятность события за один запрос хаба
+        public double switchRate = 0.001;
+        public double sensorRate = 0.01;
+        // Разброс показаний датчиков
+        public double sensorNoise = 10;
+        // Шаг времени модели для удерживаемого запроса, мс реального времени; 0 - без долгого опроса
+        public long idleTickMillis = 10;
+        public long seed = 42;
+
+        // Все устройства вместе с таймером должны получить адреса меньше BROADCAST_ADDRESS
+        public void validate() {
+            if (lamps < 0 || sockets < 0 || switches < 0 || sensors < 0)
+                throw new IllegalArgumentException("Device counts must not be negative: lamps=" + lamps
+                        + ", sockets=" + sockets + ", switches=" + switches + ", sensors=" + sensors);
+            long total = 1L + lamps + sockets + switches + sensors;
+            if (total > MAX_DEVICES)
+                throw new IllegalArgumentException("Too many devices: " + total + " including the clock, at most "
+                        + MAX_DEVICES + " fit below the broadcast address " + BROADCAST_ADDRESS);
+        }
+    }
+
+    private static class Connection {
+        private SelectionKey key;
+        // Срок удерживаемого запроса и запрошенное ожидание; 0 - запрос не удерживается
+        private long heldUntil;
+        private int wait;
+        private ByteBuffer input = ByteBuffer.allocate(4096);
+        private final Deque<ByteBuffer> output = new ArrayDeque<>();
+
+        private ByteBuffer ensureInput() {
+            if (!input.hasRemaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(input.capacity() * 2);
+                input.flip();
+                grown.put(input);
+                input = grown;
+            }
+            return input;
+        }
+    }
+
+    private static class VirtualDevice {
+        private final int address;
+        private final int type;
+        private final String name;
+        private boolean on;
+        private String[] targets;
+        private int sensorMask;
+        private int[] triggerOps;
+        private int[] triggerValues;
+
+        private VirtualDevice(int address, int type, String name) {
+            this.address = address;
+            this.type = type;
+            this.name = name;
+        }
+
+        private void frame(TestServer server, int dst, int cmd) {
+            server.out.beginFrame(address, dst, server.serial++, type, cmd);
+        }
+
+        private void iAmHere(TestServer server, int dst) {
+            frame(server, dst, 2);
+            FrameEncoder out = server.out;
+            out.writeString(name);
+            if (type == SWITCH) {
+                out.writeByte(targets.length);
+                for (String target : targets)
+                    out.writeString(target);
+            } else if (type == SENSOR) {
+                out.writeByte(sensorMask);
+                out.writeByte(targets.length);
+                for (int i = 0; i < targets.length; i++) {
+                    out.writeByte(triggerOps[i]);
+                    out.writeUleb128(triggerValues[i]);
+                    out.writeString(targets[i]);
+                }
+            }
+            out.endFrame();
+        }
+
+        private void status(TestServer server, int dst) {
+            frame(server, dst, 4);
+            FrameEncoder out = server.out;
+            if (type == SENSOR) {
+                int count = Integer.bitCount(sensorMask);
+                out.writeByte(count);
+                for (int i = 0; i < count; i++) {
+                    double value = 50 + server.random.nextGaussian() * server.config.sensorNoise;
+                    out.writeUleb128(Math.max(0, (long) value));
                 }
+            } else {
+                out.writeByte(on ? 1 : 0);
             }
-            System.out.println(s);
+            out.endFrame();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,166 @@
+// Хешированное колесо таймеров, которое двигается временем сервера из пакетов TICK.
+// Срок таймера определяет ячейку (deadline / resolution по модулю числа ячеек), поэтому постановка и отмена - O(1),
+// а один TICK проходит только ячейки между прошлым и текущим временем и сразу завершает все истекшие таймеры.
+// Таймеры одной ячейки с более поздним сроком (следующие обороты колеса) остаются на месте.
+// Экземпляр не потокобезопасен и должен использоваться одним потоком.
+public class TimerWheel<C> {
+    // Действие по истечении срока. context - значение, переданное в advance (например, пакеты для отправки).
+    public interface Task<C> {
+        void run(C context);
+    }
+
+    private static final int PENDING = 0;
+    private static final int FIRING = 1;
+    private static final int DONE = 2;
+
+    private final long resolution;
+    private final int mask;
+    private final Timeout<C>[] heads;
+    private final Timeout<C>[] tails;
+    private long now = Long.MIN_VALUE;
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long resolution, int slots) {
+        if (resolution <= 0 || slots <= 0 || (slots & (slots - 1)) != 0)
+            throw new IllegalArgumentException("resolution must be positive and slots a power of two");
+        this.resolution = resolution;
+        this.mask = slots - 1;
+        this.heads = new Timeout[slots];
+        this.tails = new Timeout[slots];
+    }
+
+    // Ставит таймер на время сервера deadline. Если срок уже прошел, таймер сработает при следующем advance.
+    public Timeout<C> schedule(long deadline, Task<C> task) {
+        Timeout<C> timeout = new Timeout<>(this, deadline, task);
+        link(timeout);
+        return timeout;
+    }
+
+    // Переводит колесо на время now и выполняет все таймеры со сроком не позже now. Возвращает их число.
+    public int advance(long now, C context) {
+        if (now < this.now)
+            return 0;
+        long to = now / resolution;
+        // До первого TICK таймеры могли встать в любые ячейки
+        long from = this.now == Long.MIN_VALUE ? to - mask : this.now / resolution;
+        this.now = now;
+
+        int fired = 0;
+        // За один оборот проходится каждая ячейка, дальше идти незачем
+        long end = Math.min(to, from + mask);
+        for (long tick = from; tick <= end; tick++) {
+            int slot = (int) (tick & mask);
+            // Сначала истекшие таймеры снимаются с ячейки, чтобы задачи могли свободно ставить и отменять другие
+            Timeout<C> first = null;
+            Timeout<C> last = null;
+            Timeout<C> timeout = heads[slot];
+            while (timeout != null) {
+                Timeout<C> next = timeout.next;
+                if (timeout.deadline <= now) {
+                    unlink(timeout);
+                    timeout.state = FIRING;
+                    if (last != null)
+                        last.nextExpired = timeout;
+                    else
+                        first = timeout;
+                    last = timeout;
+                }
+                timeout = next;
+            }
+            while (first != null) {
+                Timeout<C> next = first.nextExpired;
+                first.nextExpired = null;
+                if (first.state == FIRING) {
+                    first.state = DONE;
+                    fired++;
+                    first.task.run(context);
+                }
+                first = next;
+            }
+        }
+        return fired;
+    }
+
+    public long getNow() {
+        return now;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void link(Timeout<C> timeout) {
+        int slot = (int) (Math.max(timeout.deadline, now) / resolution & mask);
+        timeout.slot = slot;
+        timeout.prev = tails[slot];
+        if (tails[slot] != null)
+            tails[slot].next = timeout;
+        else
+            heads[slot] = timeout;
+        tails[slot] = timeout;
+        timeout.state = PENDING;
+        size++;
+    }
+
+    private void unlink(Timeout<C> timeout) {
+        int slot = timeout.slot;
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            heads[slot] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        else
+            tails[slot] = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.state = DONE;
+        size--;
+    }
+
+    public static final class Timeout<C> {
+        private final TimerWheel<C> wheel;
+        private long deadline;
+        private final Task<C> task;
+        private Timeout<C> prev;
+        private Timeout<C> next;
+        // Очередь истекших таймеров внутри advance
+        private Timeout<C> nextExpired;
+        private int slot;
+        private int state = DONE;
+
+        private Timeout(TimerWheel<C> wheel, long deadline, Task<C> task) {
+            this.wheel = wheel;
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        // Снимает таймер. Возвращает false, если он уже сработал или был отменен.
+        public boolean cancel() {
+            if (state == PENDING)
+                wheel.unlink(this);
+            else if (state == FIRING)
+                state = DONE;
+            else
+                return false;
+            return true;
+        }
+
+        // Переносит таймер на новый срок (например, для повторной попытки), в том числе уже сработавший.
+        public void reschedule(long deadline) {
+            if (state == PENDING)
+                wheel.unlink(this);
+            this.deadline = deadline;
+            wheel.link(this);
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isPending() {
+            return state == PENDING;
+        }
+    }
+}
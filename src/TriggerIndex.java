@@ -0,0 +1,154 @@
+import java.util.List;
+
+// Скомпилированные триггеры одного EnvSensor. Строится при обнаружении устройств (IAMHERE/WHOISHERE):
+// триггеры сгруппированы по номеру значения в пакете STATUS, адреса и типы целевых устройств уже найдены,
+// пороги лежат в примитивных массивах. Триггеры датчиков, которых нет у сенсора, и триггеры
+// на неизвестные устройства отбрасываются при компиляции.
+public class TriggerIndex {
+    // Триггеры значения slot лежат в диапазоне [slotStart[slot], slotStart[slot + 1])
+    private final int[] slotStart;
+    private final int[] thresholds;
+    private final boolean[] moreOrLess;
+    private final byte[] onOff;
+    private final int[] targetAddress;
+    private final int[] targetType;
+    // Выполнялось ли условие триггера при предыдущем STATUS
+    private final boolean[] matched;
+    // Номера сработавших триггеров последнего вызова evaluate
+    private final int[] fired;
+    // Для сработавших триггеров: значение пересекло порог в этом вызове
+    private final boolean[] crossedFired;
+
+    private TriggerIndex(int slots, int size) {
+        slotStart = new int[slots + 1];
+        thresholds = new int[size];
+        moreOrLess = new boolean[size];
+        onOff = new byte[size];
+        targetAddress = new int[size];
+        targetType = new int[size];
+        matched = new boolean[size];
+        fired = new int[size];
+        crossedFired = new boolean[size];
+    }
+
+    public static TriggerIndex compile(Main.EnvSensorProps props, DeviceRegistry devices) {
+        return compile(props, devices, null);
+    }
+
+    // Перекомпиляция при изменении реестра: состояние порогов переносится из previous, прежнего индекса того же сенсора,
+    // иначе следующее показание выглядело бы новым пересечением и отправило бы лишние SETSTATUS
+    public static TriggerIndex compile(Main.EnvSensorProps props, DeviceRegistry devices, TriggerIndex previous) {
+        boolean[] sensors = props.getSensors();
+        List<Main.EnvSensorProps.Trigger> triggers = props.getTriggers();
+
+        // Номер значения в STATUS для каждого датчика, -1 если датчика нет
+        int[] slotOf = new int[sensors.length];
+        int slots = 0;
+        for (int i = 0; i < sensors.length; i++)
+            slotOf[i] = sensors[i] ? slots++ : -1;
+
+        Main.Device[] targets = new Main.Device[triggers.size()];
+        int[] counts = new int[slots];
+        int size = 0;
+        for (int i = 0; i < triggers.size(); i++) {
+            int sensor = triggers.get(i).getSensor();
+            if (sensor < 0 || sensor >= sensors.length || slotOf[sensor] < 0)
+                continue;
+            Main.Device device = devices.get(triggers.get(i).getDeviceName());
+            if (device == null)
+                continue;
+            targets[i] = device;
+            counts[slotOf[sensor]]++;
+            size++;
+        }
+
+        TriggerIndex index = new TriggerIndex(slots, size);
+        for (int slot = 0; slot < slots; slot++)
+            index.slotStart[slot + 1] = index.slotStart[slot] + counts[slot];
+
+        // Порядок триггеров внутри одного значения сохраняется
+        int[] next = new int[slots];
+        System.arraycopy(index.slotStart, 0, next, 0, slots);
+        for (int i = 0; i < triggers.size(); i++) {
+            if (targets[i] == null)
+                continue;
+            int t = next[slotOf[triggers.get(i).getSensor()]]++;
+            index.thresholds[t] = triggers.get(i).getValue();
+            index.moreOrLess[t] = triggers.get(i).isMoreOrLess();
+            index.onOff[t] = triggers.get(i).getOnOff();
+            index.targetAddress[t] = targets[i].getAddress();
+            index.targetType[t] = targets[i].getDevType();
+        }
+        if (previous != null)
+            index.carryMatched(previous);
+        return index;
+    }
+
+    // Триггер наследует состояние триггера previous с тем же значением, порогом, направлением, действием и целью
+    private void carryMatched(TriggerIndex previous) {
+        boolean[] used = new boolean[previous.size()];
+        int slots = Math.min(slotStart.length, previous.slotStart.length) - 1;
+        for (int slot = 0; slot < slots; slot++) {
+            for (int t = slotStart[slot]; t < slotStart[slot + 1]; t++) {
+                for (int p = previous.slotStart[slot]; p < previous.slotStart[slot + 1]; p++) {
+                    if (!used[p] && previous.thresholds[p] == thresholds[t] && previous.moreOrLess[p] == moreOrLess[t]
+                            && previous.onOff[p] == onOff[t] && previous.targetAddress[p] == targetAddress[t]) {
+                        used[p] = true;
+                        matched[t] = previous.matched[p];
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // Проверяет значения из STATUS и возвращает количество сработавших триггеров.
+    // Их номера доступны через getFired(i).
+    // Триггер срабатывает, только если значение пересекло порог или целевое устройство не в нужном состоянии.
+    public int evaluate(double[] values, DeviceStates states) {
+        return evaluate(values, values.length, states);
+    }
+
+    // То же для первых length значений массива, который переиспользуется между пакетами
+    public int evaluate(double[] values, int length, DeviceStates states) {
+        int count = 0;
+        int slots = Math.min(length, slotStart.length - 1);
+        for (int slot = 0; slot < slots; slot++) {
+            double value = values[slot];
+            for (int t = slotStart[slot]; t < slotStart[slot + 1]; t++) {
+                boolean match = moreOrLess[t] ? value > thresholds[t] : value < thresholds[t];
+                boolean crossed = match && !matched[t];
+                matched[t] = match;
+                if (match && (crossed || !states.is(targetAddress[t], onOff[t]))) {
+                    crossedFired[count] = crossed;
+                    fired[count++] = t;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getFired(int i) {
+        return fired[i];
+    }
+
+    public boolean isCrossed(int i) {
+        return crossedFired[i];
+    }
+
+    public int getTargetAddress(int trigger) {
+        return targetAddress[trigger];
+    }
+
+    public int getTargetType(int trigger) {
+        return targetType[trigger];
+    }
+
+    public byte getOnOff(int trigger) {
+        return onOff[trigger];
+    }
+
+    public int size() {
+        return thresholds.length;
+    }
+}
@@ -0,0 +1,111 @@
+import java.nio.ByteBuffer;
+
+// Кодирование и декодирование чисел ULEB128 без промежуточных объектов.
+// Чтение и запись идут прямо из/в byte[] или ByteBuffer начиная с текущей позиции.
+public final class Uleb128 {
+
+    private Uleb128() {
+    }
+
+    // Читает число с позиции буфера, позиция сдвигается за последний байт числа.
+    public static int readInt(ByteBuffer buffer) {
+        int result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return result;
+    }
+
+    public static long readLong(ByteBuffer buffer) {
+        long result = 0L;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            result |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return result;
+    }
+
+    // Записывает число с позиции буфера, позиция сдвигается за последний записанный байт.
+    public static void write(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // Записывает число в массив с позиции position и возвращает позицию следующего байта.
+    public static int write(byte[] array, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            array[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        array[position++] = (byte) value;
+        return position;
+    }
+
+    // Количество байт, которое займет число в кодировке ULEB128.
+    public static int sizeOf(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Курсор для последовательного чтения из массива. Один экземпляр переиспользуется между пакетами.
+    public static final class Cursor {
+        private byte[] array;
+        private int position;
+
+        public Cursor reset(byte[] array, int position) {
+            this.array = array;
+            this.position = position;
+            return this;
+        }
+
+        public int readInt() {
+            int result = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = array[position++];
+                result |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return result;
+        }
+
+        public long readLong() {
+            long result = 0L;
+            int shift = 0;
+            byte b;
+            do {
+                b = array[position++];
+                result |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return result;
+        }
+
+        public int readUnsignedByte() {
+            return array[position++] & 0xff;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public void setPosition(int position) {
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TriggerIndexTest {
+    private static final int SENSOR = 10;
+    private static final int LAMP = 20;
+
+    // IAMHERE EnvSensor со всеми четырьмя датчиками и одним триггером:
+    // включить LAMP, если влажность (датчик 1) больше 50
+    private static Main.EnvSensorProps humiditySensor() {
+        int op = 1 | 2 | 1 << 2;
+        FrameEncoder frames = new FrameEncoder()
+                .beginFrame(SENSOR, Main.BROADCAST_ADDRESS, 1, 2, 2)
+                .writeString("SENSOR")
+                .writeByte(0b1111)
+                .writeByte(1)
+                .writeByte(op)
+                .writeUleb128(50)
+                .writeString("LAMP")
+                .endFrame();
+        ByteBuffer buffer = ByteBuffer.wrap(frames.getFrames(), 1, frames.size() - 1);
+        Main.DeviceBody body = (Main.DeviceBody) Main.decodePayload(buffer).getCmdBody();
+        return (Main.EnvSensorProps) body.getProps();
+    }
+
+    @Test
+    void decodesTriggerSensorFromBitsTwoAndThree() {
+        Main.EnvSensorProps props = humiditySensor();
+        Main.EnvSensorProps.Trigger trigger = props.getTriggers().get(0);
+        assertEquals(1, trigger.getSensor());
+        assertEquals(1, trigger.getOnOff());
+        assertEquals(true, trigger.isMoreOrLess());
+    }
+
+    @Test
+    void firesOnlyOnItsSensorReading() {
+        DeviceRegistry devices = new DeviceRegistry(Main.BROADCAST_ADDRESS);
+        devices.put(new Main.Device("LAMP", LAMP, 4, null));
+        DeviceStates states = new DeviceStates(Main.BROADCAST_ADDRESS);
+        TriggerIndex index = TriggerIndex.compile(humiditySensor(), devices);
+
+        // температура, влажность, освещенность, загрязнение воздуха
+        assertEquals(0, index.evaluate(new double[]{80, 10, 80, 80}, states));
+        assertEquals(1, index.evaluate(new double[]{10, 80, 10, 10}, states));
+        assertEquals(LAMP, index.getTargetAddress(index.getFired(0)));
+        assertEquals(1, index.getOnOff(index.getFired(0)));
+    }
+}